@@ -1,9 +1,18 @@
 package oy.tol.tra;
 
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Predicate;
 
 public class Algorithms {
 
+    private static final int INSERTION_SORT_THRESHOLD = 32; // Shorter ranges are insertion sorted.
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 13; // Shorter ranges are sorted in one task.
+    private static final int RADIX = 256; // Radix sort digits are bytes, two per char.
+
     /**
      * Method sorts a generic array with bubble-sort.
      */
@@ -171,9 +180,573 @@ public class Algorithms {
     }
 
     public static <T extends Comparable<T>> void fastSort(T[] arr) {
+        if (arr.length < 2) {
+            return;
+        }
         fastSort(arr, 0, arr.length - 1);
     }
 
+    /**
+     * Sorts the array in parallel with fork/join.
+     * @see #parallelSort(Object[], Comparator)
+     */
+    public static <T extends Comparable<T>> void parallelSort(T[] arr) {
+        parallelSort(arr, T::compareTo);
+    }
+
+    /**
+     * Sorts the array in parallel with fork/join, in the order of the comparator.
+     *
+     * The sort is a dual-pivot quicksort: the two pivots are the second and fourth of five
+     * sampled elements, and each partitioning splits the range into three parts, which are
+     * then sorted as separate tasks. When the sampled pivots are equal, the range has many
+     * duplicates, and it is partitioned three ways around one pivot instead, so the elements
+     * equal to the pivot are finished at once. Short ranges are insertion sorted. If the
+     * partitioning goes too deep because of bad pivots, the range is heapsorted, so the sort
+     * is O(n log n) in the worst case too (introsort). The sort is not stable.
+     *
+     * @param <T>        Type of the elements.
+     * @param arr        Array to sort.
+     * @param comparator Defines the order.
+     */
+    public static <T> void parallelSort(T[] arr, Comparator<? super T> comparator) {
+        if (arr.length < 2) {
+            return;
+        }
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(arr.length));
+        if (arr.length < PARALLEL_SORT_THRESHOLD) {
+            introSort(arr, 0, arr.length - 1, depthLimit, comparator);
+        } else {
+            ForkJoinPool.commonPool().invoke(new SortTask<>(arr, 0, arr.length - 1, depthLimit, comparator));
+        }
+    }
+
+    private static class SortTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final T[] arr;
+        private final int low;
+        private final int high;
+        private final int depth;
+        private final Comparator<? super T> comparator;
+
+        SortTask(T[] arr, int low, int high, int depth, Comparator<? super T> comparator) {
+            this.arr = arr;
+            this.low = low;
+            this.high = high;
+            this.depth = depth;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            if (high - low < PARALLEL_SORT_THRESHOLD || depth == 0) {
+                introSort(arr, low, high, depth, comparator);
+                return;
+            }
+            int[] bounds = partition(arr, low, high, comparator);
+            if (bounds.length == 2) {
+                invokeAll(new SortTask<>(arr, low, bounds[0] - 1, depth - 1, comparator),
+                        new SortTask<>(arr, bounds[1] + 1, high, depth - 1, comparator));
+            } else {
+                invokeAll(new SortTask<>(arr, low, bounds[0] - 1, depth - 1, comparator),
+                        new SortTask<>(arr, bounds[0] + 1, bounds[1] - 1, depth - 1, comparator),
+                        new SortTask<>(arr, bounds[1] + 1, high, depth - 1, comparator));
+            }
+        }
+    }
+
+    /**
+     * Sequential part of {@link #parallelSort(Object[], Comparator)} for the range [low, high].
+     */
+    private static <T> void introSort(T[] arr, int low, int high, int depth, Comparator<? super T> comparator) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            if (depth == 0) {
+                heapSort(arr, low, high, comparator);
+                return;
+            }
+            depth--;
+            int[] bounds = partition(arr, low, high, comparator);
+            introSort(arr, low, bounds[0] - 1, depth, comparator);
+            if (bounds.length == 3) {
+                introSort(arr, bounds[0] + 1, bounds[1] - 1, depth, comparator);
+            }
+            // Loop on the last part instead of recursing.
+            low = bounds[1] + 1;
+        }
+        insertionSort(arr, low, high, comparator);
+    }
+
+    /**
+     * Partitions the range [low, high] of at least INSERTION_SORT_THRESHOLD elements.
+     * @return Either three elements {p1, p2, 0}, where p1 and p2 are the indices of the two pivots:
+     *         the elements before p1 are smaller than it, the elements between are between the
+     *         pivots, and the elements after p2 are larger than it; all three parts still need
+     *         sorting. Or two elements {lt, gt}: the elements in [lt, gt] equal the pivot and are
+     *         in place, the ones before are smaller and the ones after larger.
+     */
+    private static <T> int[] partition(T[] arr, int low, int high, Comparator<? super T> comparator) {
+        int length = high - low + 1;
+        int seventh = (length >> 3) + (length >> 6) + 1;
+        int e3 = (low + high) >>> 1;
+        int e2 = e3 - seventh;
+        int e1 = e2 - seventh;
+        int e4 = e3 + seventh;
+        int e5 = e4 + seventh;
+        int[] samples = { e1, e2, e3, e4, e5 };
+        // Insertion sort of the five samples in place.
+        for (int i = 1; i < samples.length; i++) {
+            T value = arr[samples[i]];
+            int j = i - 1;
+            while (j >= 0 && comparator.compare(arr[samples[j]], value) > 0) {
+                arr[samples[j + 1]] = arr[samples[j]];
+                j--;
+            }
+            arr[samples[j + 1]] = value;
+        }
+
+        if (comparator.compare(arr[e2], arr[e4]) == 0) {
+            // Many duplicates: three-way partitioning around one pivot.
+            T pivot = arr[e3];
+            int lt = low;
+            int gt = high;
+            int i = low;
+            while (i <= gt) {
+                int c = comparator.compare(arr[i], pivot);
+                if (c < 0) {
+                    swap(arr, lt++, i++);
+                } else if (c > 0) {
+                    swap(arr, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            return new int[] { lt, gt };
+        }
+
+        swap(arr, e2, low);
+        swap(arr, e4, high);
+        T pivot1 = arr[low];
+        T pivot2 = arr[high];
+        int less = low + 1;
+        int great = high - 1;
+        for (int k = less; k <= great; k++) {
+            T value = arr[k];
+            if (comparator.compare(value, pivot1) < 0) {
+                swap(arr, k, less++);
+            } else if (comparator.compare(value, pivot2) > 0) {
+                while (k < great && comparator.compare(arr[great], pivot2) > 0) {
+                    great--;
+                }
+                swap(arr, k, great--);
+                if (comparator.compare(arr[k], pivot1) < 0) {
+                    swap(arr, k, less++);
+                }
+            }
+        }
+        less--;
+        great++;
+        swap(arr, low, less);
+        swap(arr, high, great);
+        return new int[] { less, great, 0 };
+    }
+
+    private static <T> void insertionSort(T[] arr, int low, int high, Comparator<? super T> comparator) {
+        for (int i = low + 1; i <= high; i++) {
+            T value = arr[i];
+            int j = i - 1;
+            while (j >= low && comparator.compare(arr[j], value) > 0) {
+                arr[j + 1] = arr[j];
+                j--;
+            }
+            arr[j + 1] = value;
+        }
+    }
+
+    /**
+     * Heapsort of the range [low, high], the O(n log n) fallback of the quicksort.
+     */
+    private static <T> void heapSort(T[] arr, int low, int high, Comparator<? super T> comparator) {
+        int n = high - low + 1;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(arr, low, i, n, comparator);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(arr, low, low + end);
+            siftDown(arr, low, 0, end, comparator);
+        }
+    }
+
+    private static <T> void siftDown(T[] arr, int offset, int i, int n, Comparator<? super T> comparator) {
+        T value = arr[offset + i];
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && comparator.compare(arr[offset + child + 1], arr[offset + child]) > 0) {
+                child++;
+            }
+            if (comparator.compare(arr[offset + child], value) <= 0) {
+                break;
+            }
+            arr[offset + i] = arr[offset + child];
+            i = child;
+        }
+        arr[offset + i] = value;
+    }
+
+    /**
+     * Collects runs of elements, sorts them and merges them into one sorted array, all in parallel.
+     * Each run is collected and sorted by its own fork/join task, so the collecting is parallel too,
+     * and then the runs are merged with {@link #parallelMerge(Comparable[][], Comparable[])}.
+     *
+     * @param <T>      Type of the elements.
+     * @param runCount Number of the runs.
+     * @param run      Returns the elements of the run with the given index, in any order. Called
+     *                 concurrently for different runs. The returned array is sorted in place.
+     * @param newArray Creates the result array of the given length.
+     * @return All the elements of the runs, sorted.
+     */
+    public static <T extends Comparable<T>> T[] sortRunsAndMerge(int runCount, IntFunction<T[]> run,
+            IntFunction<T[]> newArray) {
+        @SuppressWarnings("unchecked")
+        T[][] runs = (T[][]) new Comparable[runCount][];
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                RecursiveAction[] tasks = new RecursiveAction[runCount];
+                for (int i = 0; i < runCount; i++) {
+                    int index = i;
+                    tasks[i] = new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            runs[index] = run.apply(index);
+                            fastSort(runs[index]);
+                        }
+                    };
+                }
+                invokeAll(tasks);
+            }
+        });
+        int total = 0;
+        for (T[] r : runs) {
+            total += r.length;
+        }
+        T[] out = newArray.apply(total);
+        parallelMerge(runs, out);
+        return out;
+    }
+
+    /**
+     * Merges sorted runs into one sorted array in parallel.
+     * The output is divided into key ranges by splitters taken evenly from the longest run.
+     * The start of each range in each run is found with a binary search, and each range is
+     * merged from all the runs with a k-way merge by its own fork/join task, into its own part
+     * of the output. The runs are not changed.
+     *
+     * @param <T>  Type of the elements.
+     * @param runs The sorted runs.
+     * @param out  The result, its length must be the total length of the runs.
+     */
+    public static <T extends Comparable<T>> void parallelMerge(T[][] runs, T[] out) {
+        int longest = 0;
+        for (int r = 1; r < runs.length; r++) {
+            if (runs[r].length > runs[longest].length) {
+                longest = r;
+            }
+        }
+        int parts = 1;
+        if (out.length >= PARALLEL_SORT_THRESHOLD && runs.length > 1) {
+            parts = Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, out.length / (PARALLEL_SORT_THRESHOLD / 2));
+            parts = Math.max(1, Math.min(parts, runs[longest].length));
+        }
+        // cuts[j][r] is where the part j starts in the run r.
+        int[][] cuts = new int[parts + 1][runs.length];
+        int[] starts = new int[parts + 1];
+        for (int r = 0; r < runs.length; r++) {
+            cuts[parts][r] = runs[r].length;
+        }
+        starts[parts] = out.length;
+        for (int j = 1; j < parts; j++) {
+            T splitter = runs[longest][(int) ((long) runs[longest].length * j / parts)];
+            for (int r = 0; r < runs.length; r++) {
+                cuts[j][r] = lowerBound(runs[r], splitter);
+                starts[j] += cuts[j][r];
+            }
+        }
+        if (parts == 1) {
+            kWayMerge(runs, cuts[0], cuts[1], out, 0);
+            return;
+        }
+        RecursiveAction[] tasks = new RecursiveAction[parts];
+        for (int j = 0; j < parts; j++) {
+            int part = j;
+            tasks[j] = new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    kWayMerge(runs, cuts[part], cuts[part + 1], out, starts[part]);
+                }
+            };
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Returns the index of the first element not smaller than the value.
+     */
+    private static <T extends Comparable<T>> int lowerBound(T[] run, T value) {
+        int low = 0;
+        int high = run.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (run[middle].compareTo(value) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Merges the ranges [from[r], to[r]) of the runs into out starting from the index position.
+     * The next element of each run is kept in a binary min-heap of run indices.
+     */
+    private static <T extends Comparable<T>> void kWayMerge(T[][] runs, int[] from, int[] to, T[] out,
+            int position) {
+        int[] next = from.clone();
+        int[] heap = new int[runs.length];
+        int size = 0;
+        for (int r = 0; r < runs.length; r++) {
+            if (next[r] < to[r]) {
+                heap[size++] = r;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDownRuns(runs, next, heap, i, size);
+        }
+        while (size > 0) {
+            int r = heap[0];
+            out[position++] = runs[r][next[r]++];
+            if (next[r] == to[r]) {
+                heap[0] = heap[--size];
+            }
+            siftDownRuns(runs, next, heap, 0, size);
+        }
+    }
+
+    private static <T extends Comparable<T>> void siftDownRuns(T[][] runs, int[] next, int[] heap, int i, int size) {
+        int r = heap[i];
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size
+                    && runs[heap[child + 1]][next[heap[child + 1]]].compareTo(runs[heap[child]][next[heap[child]]]) < 0) {
+                child++;
+            }
+            if (runs[heap[child]][next[heap[child]]].compareTo(runs[r][next[r]]) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = r;
+    }
+
+    /**
+     * Stable MSD radix sort by string keys extracted from the elements.
+     * The elements are ordered by the first key, elements with equal first keys by the second
+     * key, and so on, in the order of {@link String#compareTo(String)}. For example persons in
+     * their {@link Person#compareTo(Person)} order are sorted with
+     * {@code radixSort(pairs, p -> p.getKey().getLastName(), p -> p.getKey().getFirstName())}.
+     *
+     * The keys are extracted once, and the elements are then distributed into buckets by the
+     * next byte of their key (a char is two bytes, high byte first), so the sorting does not
+     * call compareTo of the elements. A key that has ended goes into the first bucket, and that
+     * bucket continues with the next key. When all the elements of a range fall into the same
+     * bucket they are not moved. Short ranges are insertion sorted by comparing the keys.
+     * Elements with equal keys keep their original order.
+     *
+     * @param <T>  Type of the elements.
+     * @param arr  Array to sort.
+     * @param keys Extract the keys of an element, none of them may return null.
+     */
+    @SafeVarargs
+    public static <T> void radixSort(T[] arr, Function<? super T, String>... keys) {
+        int n = arr.length;
+        if (n < 2 || keys.length == 0) {
+            return;
+        }
+        String[][] extracted = new String[keys.length][n];
+        for (int k = 0; k < keys.length; k++) {
+            for (int i = 0; i < n; i++) {
+                extracted[k][i] = keys[k].apply(arr[i]);
+            }
+        }
+        // The indices of the elements are sorted, and the elements are moved once at the end.
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[i] = i;
+        }
+        radixSort(extracted, index, new int[n], new int[n], 0, n, 0, 0);
+        T[] copy = arr.clone();
+        for (int i = 0; i < n; i++) {
+            arr[i] = copy[index[i]];
+        }
+    }
+
+    /**
+     * Sorts index[low, high) by the keys from the key number key and its byte d onwards;
+     * the earlier bytes are equal in the range.
+     */
+    private static void radixSort(String[][] keys, int[] index, int[] aux, int[] digits, int low, int high,
+            int key, int d) {
+        while (true) {
+            if (high - low <= INSERTION_SORT_THRESHOLD) {
+                insertionSort(keys, index, low, high, key);
+                return;
+            }
+            String[] strings = keys[key];
+            int[] count = new int[RADIX + 2];
+            for (int i = low; i < high; i++) {
+                digits[i] = digit(strings[index[i]], d);
+                count[digits[i] + 1]++;
+            }
+            int same = -1;
+            for (int r = 0; r <= RADIX; r++) {
+                if (count[r + 1] == high - low) {
+                    same = r;
+                    break;
+                }
+            }
+            if (same == 0) {
+                // All the keys have ended here.
+                if (++key == keys.length) {
+                    return;
+                }
+                d = 0;
+                continue;
+            }
+            if (same > 0) {
+                d++;
+                continue;
+            }
+            for (int r = 0; r <= RADIX; r++) {
+                count[r + 1] += count[r];
+            }
+            for (int i = low; i < high; i++) {
+                aux[low + count[digits[i]]++] = index[i];
+            }
+            for (int i = low; i < high; i++) {
+                index[i] = aux[i];
+            }
+            // Now count[r] is the end of the bucket r.
+            if (key + 1 < keys.length) {
+                radixSort(keys, index, aux, digits, low, low + count[0], key + 1, 0);
+            }
+            for (int r = 1; r <= RADIX; r++) {
+                if (count[r] - count[r - 1] > 1) {
+                    radixSort(keys, index, aux, digits, low + count[r - 1], low + count[r], key, d + 1);
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Returns the byte d of the string plus one, or 0 if the string has ended.
+     */
+    private static int digit(String s, int d) {
+        int c = d >>> 1;
+        if (c >= s.length()) {
+            return 0;
+        }
+        char ch = s.charAt(c);
+        return 1 + ((d & 1) == 0 ? ch >>> 8 : ch & 0xFF);
+    }
+
+    private static void insertionSort(String[][] keys, int[] index, int low, int high, int key) {
+        for (int i = low + 1; i < high; i++) {
+            int value = index[i];
+            int j = i - 1;
+            while (j >= low && compareKeys(keys, index[j], value, key) > 0) {
+                index[j + 1] = index[j];
+                j--;
+            }
+            index[j + 1] = value;
+        }
+    }
+
+    private static int compareKeys(String[][] keys, int a, int b, int key) {
+        for (int k = key; k < keys.length; k++) {
+            int result = keys[k][a].compareTo(keys[k][b]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stable merge sort in the order of the comparator. Elements that compare equal
+     * keep their original order, which quicksort does not guarantee.
+     * Short ranges are sorted with insertion sort, and merging is skipped when the
+     * halves are already in order, so sorted input is handled in linear time.
+     *
+     * @param <T>        Type of the elements.
+     * @param arr        Array to sort.
+     * @param comparator Defines the order.
+     */
+    public static <T> void mergeSort(T[] arr, Comparator<? super T> comparator) {
+        if (arr.length < 2) {
+            return;
+        }
+        T[] aux = arr.clone();
+        mergeSort(aux, arr, 0, arr.length, comparator);
+    }
+
+    // Sorts src[low, high) into dst. Both arrays contain the same elements in the range at start.
+    private static <T> void mergeSort(T[] src, T[] dst, int low, int high, Comparator<? super T> comparator) {
+        if (high - low <= 16) {
+            for (int i = low + 1; i < high; i++) {
+                T value = dst[i];
+                int j = i - 1;
+                while (j >= low && comparator.compare(dst[j], value) > 0) {
+                    dst[j + 1] = dst[j];
+                    j--;
+                }
+                dst[j + 1] = value;
+            }
+            return;
+        }
+        int middle = (low + high) >>> 1;
+        // Sort the halves into src, then merge them into dst.
+        mergeSort(dst, src, low, middle, comparator);
+        mergeSort(dst, src, middle, high, comparator);
+        if (comparator.compare(src[middle - 1], src[middle]) <= 0) {
+            for (int i = low; i < high; i++) {
+                dst[i] = src[i];
+            }
+            return;
+        }
+        for (int i = low, l = low, h = middle; i < high; i++) {
+            if (h >= high || (l < middle && comparator.compare(src[l], src[h]) <= 0)) {
+                dst[i] = src[l++];
+            } else {
+                dst[i] = src[h++];
+            }
+        }
+    }
+
     /**
      * binarySearch that searches the index of a given element from an array.
      * 
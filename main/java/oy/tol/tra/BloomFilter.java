@@ -0,0 +1,111 @@
+package oy.tol.tra;
+
+/**
+ * Blocked Bloom filter of the hashes of the keys of a dictionary, to answer finds of
+ * missing keys without searching the dictionary.
+ *
+ * The filter is split into blocks of 512 bits, one cache line. A key sets one bit in each
+ * of the eight 64 bit words of its block, so a query reads a single cache line instead of
+ * eight random ones. The block is chosen by the high half of the 64 bit mixed hash, the
+ * bits by the low half multiplied with eight odd constants. With {@value #BITS_PER_KEY} bits
+ * per key about 1% of the missing keys pass the filter.
+ *
+ * Keys cannot be removed from a Bloom filter, so a removed key keeps its bits set and only
+ * raises the false positive rate. The dictionary builds a new filter from its keys when
+ * {@link #needsRebuild()} tells that too many keys have been added or removed.
+ */
+final class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+    private static final int BLOCK_WORDS = 8;
+    private static final int[] SALTS = { 0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d, 0x705495c7, 0x2df1424b,
+            0x9efc4947, 0x5c6bfb31 };
+
+    private final long[] words;
+    private final int blocks;
+    private final int capacity;
+    private int count; // Keys added, including the removed ones.
+    private int removed;
+
+    /**
+     * Creates an empty filter.
+     * @param capacity Number of keys the filter is sized for.
+     */
+    BloomFilter(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        blocks = (int) Math.max(1, ((long) this.capacity * BITS_PER_KEY + 511) / 512);
+        words = new long[blocks * BLOCK_WORDS];
+    }
+
+    /**
+     * Adds the hash of a key.
+     * @param hash Hash code of the key, mixed further here.
+     */
+    void add(int hash) {
+        long h = Hashing.mix64(hash);
+        int base = block(h);
+        int low = (int) h;
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            words[base + i] |= 1L << ((low * SALTS[i]) >>> 26);
+        }
+        count++;
+    }
+
+    /**
+     * Tells whether the key may be in the dictionary. False means it is not.
+     * @param hash Hash code of the key, as given to {@link #add(int)}.
+     */
+    boolean mightContain(int hash) {
+        long h = Hashing.mix64(hash);
+        int base = block(h);
+        int low = (int) h;
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            if ((words[base + i] & (1L << ((low * SALTS[i]) >>> 26))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Chooses the block from the high half of the hash with a multiplication instead of
+     * modulo, so the number of blocks need not be a power of two.
+     */
+    private int block(long h) {
+        return (int) (((h >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+    }
+
+    /**
+     * Counts a key removed from the dictionary. Its bits stay set.
+     */
+    void removed() {
+        removed++;
+    }
+
+    /**
+     * Tells whether the filter should be built again: when it holds more keys than it was
+     * sized for, or when more than half of its keys have been removed since.
+     */
+    boolean needsRebuild() {
+        return count > capacity || removed > Math.max(64, count / 2);
+    }
+
+    /**
+     * Returns the chance that a missing key passes the filter: the average over the blocks
+     * of the product of the shares of set bits in its words.
+     */
+    double expectedFalsePositiveRate() {
+        double sum = 0.0;
+        for (int base = 0; base < words.length; base += BLOCK_WORDS) {
+            double p = 1.0;
+            for (int i = 0; i < BLOCK_WORDS; i++) {
+                p *= Long.bitCount(words[base + i]) / 64.0;
+            }
+            sum += p;
+        }
+        return sum / blocks;
+    }
+
+    long memoryBytes() {
+        return DictionaryStats.arrayBytes(words.length, 8);
+    }
+}
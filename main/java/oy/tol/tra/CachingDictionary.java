@@ -0,0 +1,637 @@
+package oy.tol.tra;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A bounded cache in front of another dictionary, for skewed lookups where a small part
+ * of the keys gets most of the finds, and the backing dictionary is slow: a
+ * {@link KeyValueArray}, a {@link MappedKeyValueHashTable} on disk or a remote stand-in.
+ *
+ * A find that misses the cache reads the backing dictionary and offers the found value to
+ * the cache. Adds and removes are written through to the backing dictionary at once, and
+ * the cached copy of the key is updated or dropped, so the cache never returns stale values.
+ * Keys that are not found are not cached.
+ *
+ * The cache is divided into segments by the hash of the key, each with its own lock, so
+ * threads finding different keys rarely wait for each other. A segment keeps its entries in
+ * arrays with index links for the eviction order, and finds them with its own open
+ * addressing index. The backing dictionary is read under a shared lock and written under an
+ * exclusive one, so it must allow concurrent finds (a hash table growing incrementally
+ * does not, as its find moves elements).
+ *
+ * The {@link Policy} decides what is evicted when a segment is full. The hit ratio is
+ * available from {@link #getHitRatio()} and {@link #getStats()}.
+ */
+public class CachingDictionary<K extends Comparable<K>, V> implements Dictionary<K, V> {
+
+    /**
+     * Which entries the cache keeps when it is full.
+     */
+    public enum Policy {
+        /** Evicts the least recently used entry. */
+        LRU,
+        /**
+         * W-TinyLFU: a new entry first goes to a small LRU window (1% of the capacity). An entry
+         * falling out of the window replaces the victim of the main area only if its key has been
+         * asked for more often, as estimated by a count-min sketch of the recent finds. The main
+         * area is a segmented LRU: entries found again are protected (80% of the main area) from
+         * the entries found only once. This keeps the frequently found keys even when a burst of
+         * rarely found keys passes through, which plain LRU does not.
+         */
+        TINY_LFU
+    }
+
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Dictionary<K, V> backing;
+    private final ReentrantReadWriteLock backingLock = new ReentrantReadWriteLock();
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int capacity;
+    private final Policy policy;
+    private final DictionaryCounters counters = new DictionaryCounters();
+
+    /**
+     * Creates a W-TinyLFU cache.
+     * @see #CachingDictionary(Dictionary, int, Policy)
+     */
+    public CachingDictionary(Dictionary<K, V> backing, int capacity) {
+        this(backing, capacity, Policy.TINY_LFU);
+    }
+
+    /**
+     * Creates the cache.
+     * @param backing The dictionary to cache.
+     * @param capacity The most entries to keep in the cache.
+     * @param policy What to evict when the cache is full.
+     */
+    @SuppressWarnings("unchecked")
+    public CachingDictionary(Dictionary<K, V> backing, int capacity, Policy policy) {
+        if (null == backing || capacity < 1 || null == policy) {
+            throw new IllegalArgumentException();
+        }
+        this.backing = backing;
+        this.capacity = capacity;
+        this.policy = policy;
+        int count = Integer.highestOneBit(Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors() * 4, capacity / MIN_SEGMENT_CAPACITY)));
+        segments = (Segment[]) new CachingDictionary.Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((capacity + count - 1) / count);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        counters.setEnabled(true);
+    }
+
+    private Segment segmentFor(int h) {
+        // The segment is chosen by the high bits, the index of the segment uses the low bits.
+        return segments.length == 1 ? segments[0] : segments[h >>> segmentShift];
+    }
+
+    @Override
+    public Type getType() {
+        return backing.getType();
+    }
+
+    /**
+     * Finds the value of the key from the cache, or from the backing dictionary on a miss.
+     */
+    @Override
+    public V find(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        int h = Hashing.mix(key.hashCode());
+        Segment segment = segmentFor(h);
+        V value = segment.get(key, h);
+        if (null != value) {
+            counters.lookup(true);
+            return value;
+        }
+        counters.lookup(false);
+        backingLock.readLock().lock();
+        try {
+            // Cached while the backing dictionary cannot change, so a concurrent add
+            // cannot be overwritten with the value read here.
+            value = backing.find(key);
+            if (null != value) {
+                segment.put(key, h, value);
+            }
+        } finally {
+            backingLock.readLock().unlock();
+        }
+        return value;
+    }
+
+    /**
+     * Adds the key to the backing dictionary, and updates the cached value if the key is cached.
+     */
+    @Override
+    public boolean add(K key, V value) throws IllegalArgumentException, OutOfMemoryError {
+        if (null == key || null == value) {
+            throw new IllegalArgumentException();
+        }
+        int h = Hashing.mix(key.hashCode());
+        backingLock.writeLock().lock();
+        try {
+            int before = backing.size();
+            boolean added = backing.add(key, value);
+            segmentFor(h).update(key, h, value);
+            counters.added(backing.size() > before);
+            return added;
+        } finally {
+            backingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAll(Pair<K, V>[] pairs) throws IllegalArgumentException, OutOfMemoryError {
+        backingLock.writeLock().lock();
+        try {
+            int before = backing.size();
+            backing.addAll(pairs);
+            for (Pair<K, V> pair : pairs) {
+                int h = Hashing.mix(pair.getKey().hashCode());
+                segmentFor(h).update(pair.getKey(), h, pair.getValue());
+            }
+            int inserted = backing.size() - before;
+            counters.added(inserted, pairs.length - inserted);
+        } finally {
+            backingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAll(Iterable<Pair<K, V>> pairs) throws IllegalArgumentException, OutOfMemoryError {
+        addAll(Pair.toArray(pairs));
+    }
+
+    /**
+     * Removes the key from the backing dictionary and from the cache.
+     */
+    @Override
+    public V remove(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        int h = Hashing.mix(key.hashCode());
+        backingLock.writeLock().lock();
+        try {
+            V value = backing.remove(key);
+            segmentFor(h).invalidate(key, h);
+            if (null != value) {
+                counters.removed();
+            }
+            return value;
+        } finally {
+            backingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        backingLock.readLock().lock();
+        try {
+            return backing.size();
+        } finally {
+            backingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the share of the finds answered from the cache, from 0 to 1.
+     */
+    public double getHitRatio() {
+        long hits = counters.getHits();
+        long total = hits + counters.getMisses();
+        return total > 0 ? (double) hits / total : 0.0;
+    }
+
+    /**
+     * Returns the counters of the cache. Unlike in the dictionaries, they are enabled by default.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    @Override
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder(backing.getStatus());
+        sb.append(String.format("%s cache of %d entries in %d segments has a hit ratio of %.2f%%.%n", policy,
+                capacity, segments.length, getHitRatio() * 100));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the statistics of the cache: the hits and misses are those of the cache, the
+     * capacity is the number of entries it can hold and the memory estimate is of the cache
+     * only. The statistics of the backing dictionary are available from it.
+     */
+    @Override
+    public DictionaryStats getStats() {
+        DictionaryStats stats = new DictionaryStats(getType(), size());
+        stats.setCounters(counters);
+        stats.setCapacity(capacity);
+        long memory = 0;
+        for (Segment segment : segments) {
+            memory += segment.memoryBytes();
+        }
+        stats.setMemoryBytes(memory);
+        return stats;
+    }
+
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        backingLock.readLock().lock();
+        try {
+            return backing.toSortedArray();
+        } finally {
+            backingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Iterates the backing dictionary, which must not be changed while iterating.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return backing.iterator();
+    }
+
+    /**
+     * Splits the backing dictionary, which must not be changed while iterating.
+     */
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        return backing.spliterator();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        backingLock.readLock().lock();
+        try {
+            backing.forEach(action);
+        } finally {
+            backingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the backing dictionary and the cache.
+     */
+    @Override
+    public void ensureCapacity(int size) throws OutOfMemoryError {
+        backingLock.writeLock().lock();
+        try {
+            backing.ensureCapacity(size);
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+        } finally {
+            backingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void compress() throws OutOfMemoryError {
+        backingLock.writeLock().lock();
+        try {
+            backing.compress();
+        } finally {
+            backingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A part of the cache with its own lock. The entries are in parallel arrays, linked into
+     * the queues of the policy by their indices in prev and next; the head of a queue is its
+     * least recently used entry. The index finds an entry by its key with linear probing.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int capacity;
+        private final int windowCapacity;
+        private final int protectedCapacity;
+        private final Object[] keys;
+        private final Object[] values;
+        private final int[] hashes;
+        private final int[] prev;
+        private final int[] next;
+        private final byte[] queues; // Queue of the entry, -1 when not in any.
+        private final int[] index; // Entry + 1, 0 for an empty slot.
+        private final int indexMask;
+        private final int[] heads = { -1, -1, -1 };
+        private final int[] tails = { -1, -1, -1 };
+        private final int[] sizes = new int[3];
+        private final FrequencySketch sketch;
+        private int free = -1; // First entry of the free list, linked by next.
+        private int used = 0; // Entries taken into use so far.
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            if (policy == Policy.LRU) {
+                windowCapacity = capacity;
+                protectedCapacity = 0;
+                sketch = null;
+            } else {
+                windowCapacity = Math.max(1, capacity / 100);
+                protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+                sketch = new FrequencySketch(capacity);
+            }
+            // One extra entry, the new one is placed before the evicted one is freed.
+            keys = new Object[capacity + 1];
+            values = new Object[capacity + 1];
+            hashes = new int[capacity + 1];
+            prev = new int[capacity + 1];
+            next = new int[capacity + 1];
+            queues = new byte[capacity + 1];
+            index = new int[Hashing.tableSizeFor(2L * (capacity + 1))];
+            indexMask = index.length - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(K key, int h) {
+            lock.lock();
+            try {
+                if (null != sketch) {
+                    sketch.increment(h);
+                }
+                int e = lookup(key, h);
+                if (e < 0) {
+                    return null;
+                }
+                onAccess(e);
+                return (V) values[e];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Offers a value read from the backing dictionary to the cache.
+         */
+        void put(K key, int h, V value) {
+            lock.lock();
+            try {
+                int e = lookup(key, h);
+                if (e >= 0) {
+                    // Another thread cached it meanwhile.
+                    values[e] = value;
+                    return;
+                }
+                e = allocate();
+                keys[e] = key;
+                values[e] = value;
+                hashes[e] = h;
+                indexAdd(e);
+                link(e, WINDOW);
+                if (sizes[WINDOW] > windowCapacity) {
+                    if (null == sketch) {
+                        evict(heads[WINDOW]);
+                    } else {
+                        admit(heads[WINDOW]);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void update(K key, int h, V value) {
+            lock.lock();
+            try {
+                int e = lookup(key, h);
+                if (e >= 0) {
+                    values[e] = value;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(K key, int h) {
+            lock.lock();
+            try {
+                int e = lookup(key, h);
+                if (e >= 0) {
+                    evict(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                for (int e = 0; e < used; e++) {
+                    keys[e] = null;
+                    values[e] = null;
+                }
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = 0;
+                }
+                for (int q = 0; q < 3; q++) {
+                    heads[q] = -1;
+                    tails[q] = -1;
+                    sizes[q] = 0;
+                }
+                free = -1;
+                used = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long memoryBytes() {
+            long memory = 2 * DictionaryStats.arrayBytes(keys.length, 4) + 3 * DictionaryStats.arrayBytes(keys.length, 4)
+                    + DictionaryStats.arrayBytes(keys.length, 1) + DictionaryStats.arrayBytes(index.length, 4);
+            return null != sketch ? memory + sketch.memoryBytes() : memory;
+        }
+
+        /**
+         * Moves an entry found again: to the end of its queue, or from probation to protected.
+         * When protected is full, its least recently used entry goes back to probation.
+         */
+        private void onAccess(int e) {
+            int queue = queues[e];
+            unlink(e);
+            if (queue != PROBATION) {
+                link(e, queue);
+                return;
+            }
+            link(e, PROTECTED);
+            if (sizes[PROTECTED] > protectedCapacity) {
+                int demoted = heads[PROTECTED];
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        }
+
+        /**
+         * Moves the entry falling out of the window to the main area, if the main area has
+         * room or the key of the entry is more frequent than the key of the main victim.
+         */
+        private void admit(int candidate) {
+            unlink(candidate);
+            if (sizes[PROBATION] + sizes[PROTECTED] < capacity - windowCapacity) {
+                link(candidate, PROBATION);
+                return;
+            }
+            int victim = heads[PROBATION] >= 0 ? heads[PROBATION] : heads[PROTECTED];
+            if (victim >= 0 && sketch.frequency(hashes[candidate]) > sketch.frequency(hashes[victim])) {
+                evict(victim);
+                link(candidate, PROBATION);
+            } else {
+                evict(candidate);
+            }
+        }
+
+        private int allocate() {
+            if (free >= 0) {
+                int e = free;
+                free = next[e];
+                return e;
+            }
+            return used++;
+        }
+
+        private void evict(int e) {
+            if (queues[e] >= 0) {
+                unlink(e);
+            }
+            indexRemove(e);
+            keys[e] = null;
+            values[e] = null;
+            next[e] = free;
+            free = e;
+        }
+
+        private void link(int e, int queue) {
+            queues[e] = (byte) queue;
+            prev[e] = tails[queue];
+            next[e] = -1;
+            if (tails[queue] >= 0) {
+                next[tails[queue]] = e;
+            } else {
+                heads[queue] = e;
+            }
+            tails[queue] = e;
+            sizes[queue]++;
+        }
+
+        private void unlink(int e) {
+            int queue = queues[e];
+            if (prev[e] >= 0) {
+                next[prev[e]] = next[e];
+            } else {
+                heads[queue] = next[e];
+            }
+            if (next[e] >= 0) {
+                prev[next[e]] = prev[e];
+            } else {
+                tails[queue] = prev[e];
+            }
+            sizes[queue]--;
+            queues[e] = -1;
+        }
+
+        private int lookup(Object key, int h) {
+            for (int slot = h & indexMask;; slot = (slot + 1) & indexMask) {
+                int e = index[slot] - 1;
+                if (e < 0) {
+                    return -1;
+                }
+                if (hashes[e] == h && key.equals(keys[e])) {
+                    return e;
+                }
+            }
+        }
+
+        private void indexAdd(int e) {
+            int slot = hashes[e] & indexMask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            index[slot] = e + 1;
+        }
+
+        /**
+         * Removes the entry from the index with backward shift deletion: the following
+         * entries that may move back to the hole are moved, so no tombstones are needed.
+         */
+        private void indexRemove(int e) {
+            int hole = hashes[e] & indexMask;
+            while (index[hole] != e + 1) {
+                hole = (hole + 1) & indexMask;
+            }
+            for (int slot = (hole + 1) & indexMask; index[slot] != 0; slot = (slot + 1) & indexMask) {
+                int home = hashes[index[slot] - 1] & indexMask;
+                if (((slot - home) & indexMask) >= ((slot - hole) & indexMask)) {
+                    index[hole] = index[slot];
+                    hole = slot;
+                }
+            }
+            index[hole] = 0;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters estimating how often the keys have been asked for.
+     * Each key increments one counter in each of the four rows, and its frequency is the
+     * smallest of them. When the increments reach ten times the capacity, all the counters
+     * are halved, so that the sketch follows the recent popularity of the keys.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0xb8e7a3b5, 0x3c6ef372, 0x5be0cd19 };
+
+        private final byte[] table;
+        private final int width;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int capacity) {
+            width = Hashing.tableSizeFor(Math.max(16, capacity));
+            table = new byte[ROWS * width];
+            sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        void increment(int h) {
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int i = row * width + (Hashing.mix(h ^ SEEDS[row]) & (width - 1));
+                if (table[i] < MAX_COUNT) {
+                    table[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int h) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, table[row * width + (Hashing.mix(h ^ SEEDS[row]) & (width - 1))]);
+            }
+            return frequency;
+        }
+
+        long memoryBytes() {
+            return DictionaryStats.arrayBytes(table.length, 1);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package oy.tol.tra;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts objects to bytes and back, for storing keys and values in files.
+ *
+ * The written bytes of equal objects must be equal, because
+ * {@link MappedKeyValueHashTable} compares keys by their bytes.
+ *
+ * @param <T> Type of the objects.
+ */
+public interface Codec<T> {
+
+    /**
+     * Writes the object.
+     * @param value The object to write.
+     * @param out Where to write.
+     * @throws IOException If writing fails.
+     */
+    void write(T value, DataOutput out) throws IOException;
+
+    /**
+     * Reads an object from the position of the buffer, and moves the
+     * position to the end of the object.
+     * @param buffer The buffer to read from.
+     * @return The object.
+     */
+    T read(ByteBuffer buffer);
+
+    /**
+     * Writes a string as its length in bytes followed by the UTF-8 bytes.
+     * @param value The string to write.
+     * @param out Where to write.
+     * @throws IOException If writing fails.
+     */
+    static void writeString(String value, DataOutput out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with {@link #writeString(String, DataOutput)}.
+     * @param buffer The buffer to read from.
+     * @return The string.
+     */
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
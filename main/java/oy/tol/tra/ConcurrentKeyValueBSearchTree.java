@@ -0,0 +1,420 @@
+package oy.tol.tra;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe AVL tree where readers never lock nor wait.
+ *
+ * The nodes are immutable. A write copies the nodes on the path from the root
+ * to the changed node (and the nodes the rebalancing rotations touch), and
+ * then publishes the new version of the tree by writing the volatile root.
+ * A reader reads the root once and walks that version of the tree, so it
+ * always sees a complete, balanced tree, no matter what the writers do
+ * meanwhile. The writers are serialized with a lock.
+ *
+ * Like {@link KeyValueBSearchTree}, the nodes are ordered by the hash of the
+ * key, and the keys having the same hash are kept in the same node.
+ */
+public class ConcurrentKeyValueBSearchTree<K extends Comparable<K>, V> implements Dictionary<K, V> {
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Version<K, V> current = new Version<>(null, 0);
+    private final DictionaryCounters counters = new DictionaryCounters();
+
+    /**
+     * Root of one version of the tree and the number of elements in it.
+     */
+    private static final class Version<K extends Comparable<K>, V> {
+        final TreeNode<K, V> root;
+        final int count;
+
+        Version(TreeNode<K, V> root, int count) {
+            this.root = root;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Immutable tree node holding all the pairs whose keys have the same hash.
+     */
+    private static final class TreeNode<K extends Comparable<K>, V> {
+        final int hash;
+        final Pair<K, V>[] pairs;
+        final TreeNode<K, V> left;
+        final TreeNode<K, V> right;
+        final int height;
+
+        TreeNode(int hash, Pair<K, V>[] pairs, TreeNode<K, V> left, TreeNode<K, V> right) {
+            this.hash = hash;
+            this.pairs = pairs;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+
+        TreeNode<K, V> with(TreeNode<K, V> newLeft, TreeNode<K, V> newRight) {
+            return new TreeNode<>(hash, pairs, newLeft, newRight);
+        }
+    }
+
+    @Override
+    public Type getType() {
+        return Type.BST;
+    }
+
+    @Override
+    public int size() {
+        return current.count;
+    }
+
+    @Override
+    public String getStatus() {
+        return String.format("Tree has max depth of: %d%n", height(current.root));
+    }
+
+    /**
+     * Returns the counters of the operations of this tree, to enable, disable or reset them.
+     * The counters are thread safe.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Returns the statistics of the current version of the tree, collected with one walk
+     * of it. Writers may continue meanwhile, they do not change the version being walked.
+     */
+    @Override
+    public DictionaryStats getStats() {
+        Version<K, V> version = current;
+        DictionaryStats stats = new DictionaryStats(getType(), version.count);
+        stats.setCounters(counters);
+        int height = height(version.root);
+        stats.setHeight(height);
+        long[][] histograms = { new long[height], new long[2] }; // Depths, keys per node.
+        long[] totals = new long[2]; // Nodes, pairs.
+        walkStats(version.root, 0, histograms, totals);
+        stats.setProbeLengths(histograms[0]);
+        int longest = histograms[1].length;
+        while (longest > 0 && histograms[1][longest - 1] == 0) {
+            longest--;
+        }
+        long[] chains = new long[longest];
+        System.arraycopy(histograms[1], 0, chains, 0, longest);
+        stats.setChainLengths(chains);
+        stats.setCapacity(totals[0]);
+        // A node is 32 bytes with its fields, a Pair 24 bytes, and each node has an array of its pairs.
+        stats.setMemoryBytes(totals[0] * (32 + DictionaryStats.arrayBytes(0, 4)) + totals[1] * (24 + 4));
+        return stats;
+    }
+
+    private static void walkStats(TreeNode<?, ?> node, int depth, long[][] histograms, long[] totals) {
+        if (null == node) {
+            return;
+        }
+        histograms[0][depth]++;
+        int pairs = node.pairs.length;
+        if (pairs >= histograms[1].length) {
+            long[] bigger = new long[Math.max(pairs + 1, histograms[1].length * 2)];
+            System.arraycopy(histograms[1], 0, bigger, 0, histograms[1].length);
+            histograms[1] = bigger;
+        }
+        histograms[1][pairs]++;
+        totals[0]++;
+        totals[1] += pairs;
+        walkStats(node.left, depth + 1, histograms, totals);
+        walkStats(node.right, depth + 1, histograms, totals);
+    }
+
+    @Override
+    public boolean add(K key, V value) throws IllegalArgumentException, OutOfMemoryError {
+        if (null == key || null == value) {
+            throw new IllegalArgumentException();
+        }
+        int keyHash = key.hashCode();
+        writeLock.lock();
+        try {
+            Version<K, V> version = current;
+            boolean[] added = new boolean[1];
+            TreeNode<K, V> root = insert(version.root, key, keyHash, value, added);
+            current = new Version<>(root, version.count + (added[0] ? 1 : 0));
+            counters.added(added[0]);
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TreeNode<K, V> insert(TreeNode<K, V> node, K key, int keyHash, V value, boolean[] added) {
+        if (null == node) {
+            added[0] = true;
+            return new TreeNode<>(keyHash, new Pair[] { new Pair<>(key, value) }, null, null);
+        }
+        if (keyHash < node.hash) {
+            return rotation(node.with(insert(node.left, key, keyHash, value, added), node.right));
+        }
+        if (keyHash > node.hash) {
+            return rotation(node.with(node.left, insert(node.right, key, keyHash, value, added)));
+        }
+        // Same hash: replace the value of the same key, or chain a colliding key.
+        Pair<K, V>[] pairs = node.pairs;
+        int index = indexOf(pairs, key);
+        Pair<K, V>[] copy = new Pair[index >= 0 ? pairs.length : pairs.length + 1];
+        for (int i = 0; i < pairs.length; i++) {
+            copy[i] = pairs[i];
+        }
+        if (index >= 0) {
+            copy[index] = new Pair<>(key, value);
+        } else {
+            copy[pairs.length] = new Pair<>(key, value);
+            added[0] = true;
+        }
+        return new TreeNode<>(node.hash, copy, node.left, node.right);
+    }
+
+    @Override
+    public V find(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        int hashKey = key.hashCode();
+        TreeNode<K, V> node = current.root;
+        while (null != node) {
+            if (hashKey == node.hash) {
+                int index = indexOf(node.pairs, key);
+                counters.lookup(index >= 0);
+                return index >= 0 ? node.pairs[index].getValue() : null;
+            }
+            node = hashKey < node.hash ? node.left : node.right;
+        }
+        counters.lookup(false);
+        return null;
+    }
+
+    @Override
+    public V remove(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        int keyHash = key.hashCode();
+        writeLock.lock();
+        try {
+            Version<K, V> version = current;
+            Object[] removed = new Object[1];
+            TreeNode<K, V> root = delete(version.root, key, keyHash, removed);
+            if (null == removed[0]) {
+                return null;
+            }
+            current = new Version<>(root, version.count - 1);
+            counters.removed();
+            @SuppressWarnings("unchecked")
+            V value = (V) removed[0];
+            return value;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private TreeNode<K, V> delete(TreeNode<K, V> node, K key, int keyHash, Object[] removed) {
+        if (null == node) {
+            return null;
+        }
+        if (keyHash < node.hash) {
+            TreeNode<K, V> left = delete(node.left, key, keyHash, removed);
+            return left == node.left ? node : rotation(node.with(left, node.right));
+        }
+        if (keyHash > node.hash) {
+            TreeNode<K, V> right = delete(node.right, key, keyHash, removed);
+            return right == node.right ? node : rotation(node.with(node.left, right));
+        }
+        Pair<K, V>[] pairs = node.pairs;
+        int index = indexOf(pairs, key);
+        if (index < 0) {
+            return node;
+        }
+        removed[0] = pairs[index].getValue();
+        if (pairs.length > 1) {
+            Pair<K, V>[] copy = new Pair[pairs.length - 1];
+            for (int i = 0, j = 0; i < pairs.length; i++) {
+                if (i != index) {
+                    copy[j++] = pairs[i];
+                }
+            }
+            return new TreeNode<>(node.hash, copy, node.left, node.right);
+        }
+        if (null == node.left) {
+            return node.right;
+        }
+        if (null == node.right) {
+            return node.left;
+        }
+        // Two children: the smallest node of the right subtree takes the place of the node.
+        TreeNode<K, V> successor = node.right;
+        while (null != successor.left) {
+            successor = successor.left;
+        }
+        return rotation(new TreeNode<>(successor.hash, successor.pairs, node.left, deleteMin(node.right)));
+    }
+
+    private TreeNode<K, V> deleteMin(TreeNode<K, V> node) {
+        if (null == node.left) {
+            return node.right;
+        }
+        return rotation(node.with(deleteMin(node.left), node.right));
+    }
+
+    private int indexOf(Pair<K, V>[] pairs, K key) {
+        for (int i = 0; i < pairs.length; i++) {
+            if (key.equals(pairs[i].getKey())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int height(TreeNode<?, ?> node) {
+        return null != node ? node.height : 0;
+    }
+
+    private static int balance(TreeNode<?, ?> node) {
+        return height(node.left) - height(node.right);
+    }
+
+    /**
+     * Rebalances the node like {@link KeyValueBSearchTree}, but creates new nodes
+     * instead of changing the children of the existing ones.
+     */
+    private TreeNode<K, V> rotation(TreeNode<K, V> node) {
+        int balance = balance(node);
+        // Right heavy
+        if (balance < -1) {
+            if (balance(node.right) > 0) {
+                node = node.with(node.left, rightRotation(node.right)); // Right-left
+            }
+            return leftRotation(node);
+        }
+        // Left heavy
+        if (balance > 1) {
+            if (balance(node.left) < 0) {
+                node = node.with(leftRotation(node.left), node.right); // Left-Right.
+            }
+            return rightRotation(node);
+        }
+        return node;
+    }
+
+    private TreeNode<K, V> leftRotation(TreeNode<K, V> node) {
+        TreeNode<K, V> right = node.right;
+        return right.with(node.with(node.left, right.left), right.right);
+    }
+
+    private TreeNode<K, V> rightRotation(TreeNode<K, V> node) {
+        TreeNode<K, V> left = node.left;
+        return left.with(left.left, node.with(left.right, node.right));
+    }
+
+    @Override
+    public void ensureCapacity(int size) throws OutOfMemoryError {
+        return;
+    }
+
+    /**
+     * Returns the elements of the current version of the tree sorted by key.
+     * Readers and writers may continue meanwhile; they do not affect the version
+     * being copied.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        Version<K, V> version = current;
+        Pair<K, V>[] arr = new Pair[version.count];
+        TreeNode<K, V>[] stack = new TreeNode[height(version.root)];
+        int depth = 0;
+        int i = 0;
+        TreeNode<K, V> node = version.root;
+        while (null != node || depth > 0) {
+            while (null != node) {
+                stack[depth++] = node;
+                node = node.left;
+            }
+            node = stack[--depth];
+            for (Pair<K, V> p : node.pairs) {
+                arr[i++] = new Pair<>(p.getKey(), p.getValue());
+            }
+            node = node.right;
+        }
+        Algorithms.fastSort(arr);
+        return arr;
+    }
+
+    /**
+     * Returns the elements of the current version of the tree in hash order.
+     * Writers may continue meanwhile; the iterator keeps walking the version it started with.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return new VersionIterator<>(current.root);
+    }
+
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        Version<K, V> version = current;
+        return Spliterators.spliterator(new VersionIterator<>(version.root), version.count,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.IMMUTABLE);
+    }
+
+    /**
+     * In-order walk of one version of the tree with an explicit stack.
+     * Returns copies of the pairs, so the caller cannot change the tree through them.
+     */
+    private static final class VersionIterator<K extends Comparable<K>, V> implements Iterator<Pair<K, V>> {
+        private final TreeNode<K, V>[] stack;
+        private int depth = 0;
+        private Pair<K, V>[] pairs = null; // Pairs of the current node.
+        private int index = 0;
+
+        @SuppressWarnings("unchecked")
+        VersionIterator(TreeNode<K, V> root) {
+            stack = new TreeNode[height(root)];
+            pushLeft(root);
+        }
+
+        private void pushLeft(TreeNode<K, V> node) {
+            for (; null != node; node = node.left) {
+                stack[depth++] = node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (null != pairs && index < pairs.length) || depth > 0;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            if (null == pairs || index == pairs.length) {
+                if (depth == 0) {
+                    throw new NoSuchElementException();
+                }
+                TreeNode<K, V> node = stack[--depth];
+                pushLeft(node.right);
+                pairs = node.pairs;
+                index = 0;
+            }
+            // A copy, the pairs in the nodes are shared by all the versions of the tree.
+            Pair<K, V> pair = pairs[index++];
+            return new Pair<>(pair.getKey(), pair.getValue());
+        }
+    }
+
+    @Override
+    public void compress() throws OutOfMemoryError {
+        return;
+    }
+}
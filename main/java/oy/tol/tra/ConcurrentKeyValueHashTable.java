@@ -0,0 +1,384 @@
+package oy.tol.tra;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A thread safe hash table.
+ *
+ * The table is split into segments, each of them a {@link KeyValueHashTable}
+ * guarded by its own {@link StampedLock}. A key always goes into the segment
+ * picked by the high bits of its mixed hash, and the segment table uses the
+ * low bits, so the segments grow and rehash independently of each other.
+ *
+ * Writes lock only their own segment. Finds do not lock at all: they read the
+ * segment optimistically and validate the stamp afterwards, and only if a write
+ * to the same segment happened meanwhile, the find is retried under a read lock.
+ */
+public class ConcurrentKeyValueHashTable<K extends Comparable<K>, V> implements Dictionary<K, V> {
+    private static final int DEFAULT_SIZE = 1024;
+    private static final int DEFAULT_SEGMENTS = 64;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentShift;
+    private final DictionaryCounters counters = new DictionaryCounters(); // Shared by the segments.
+
+    private static class Segment<K extends Comparable<K>, V> {
+        final StampedLock lock = new StampedLock();
+        final KeyValueHashTable<K, V> table;
+
+        Segment(int size, DictionaryCounters counters) {
+            table = new KeyValueHashTable<>(size, counters);
+        }
+    }
+
+    public ConcurrentKeyValueHashTable() {
+        this(DEFAULT_SIZE, DEFAULT_SEGMENTS);
+    }
+
+    public ConcurrentKeyValueHashTable(int size) {
+        this(size, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates the table.
+     * @param size Expected number of elements.
+     * @param concurrency Expected number of concurrently writing threads. Rounded up to a power of two
+     *                    to get the number of segments.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentKeyValueHashTable(int size, int concurrency) {
+        if (concurrency < 1 || size < 0) {
+            throw new IllegalArgumentException();
+        }
+        int count = Hashing.tableSizeFor(concurrency);
+        segments = new Segment[count];
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(size / count, counters);
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        // Shifting an int by 32 does nothing, so a single segment needs a special case.
+        return segments.length == 1 ? segments[0] : segments[Hashing.mix(key.hashCode()) >>> segmentShift];
+    }
+
+    @Override
+    public Type getType() {
+        return Type.HASHTABLE;
+    }
+
+    @Override
+    public void ensureCapacity(int size) throws OutOfMemoryError {
+        for (Segment<K, V> segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table.ensureCapacity(size / segments.length);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public boolean add(K key, V value) throws IllegalArgumentException, OutOfMemoryError {
+        if (null == key || null == value) {
+            throw new IllegalArgumentException();
+        }
+        Segment<K, V> segment = segmentFor(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.table.add(key, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V find(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        Segment<K, V> segment = segmentFor(key);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            V value = null;
+            boolean valid;
+            try {
+                // Not counted yet, the find may have to be repeated.
+                value = segment.table.peek(key);
+                valid = segment.lock.validate(stamp);
+            } catch (RuntimeException e) {
+                if (segment.lock.validate(stamp)) {
+                    throw e; // The table did not change, so the failure is real, from equals for example.
+                }
+                // A write changed the segment in the middle of the find, so the
+                // table was seen half updated. Retried below under the read lock.
+                valid = false;
+            }
+            if (valid) {
+                counters.lookup(null != value);
+                return value;
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return segment.table.find(key);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V remove(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        Segment<K, V> segment = segmentFor(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.table.remove(key);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of elements. The segments are counted one at a time, so while
+     * other threads are writing the result is not an exact snapshot.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.table.size();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Concurrent hash table has %d segments.%n", segments.length));
+        int smallest = Integer.MAX_VALUE;
+        int largest = 0;
+        for (Segment<K, V> segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                smallest = Math.min(smallest, segment.table.size());
+                largest = Math.max(largest, segment.table.size());
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        sb.append(String.format("Segment sizes vary from %d to %d elements.%n", smallest, largest));
+        long stamp = segments[0].lock.readLock();
+        try {
+            sb.append("First segment:").append(String.format("%n")).append(segments[0].table.getStatus());
+        } finally {
+            segments[0].lock.unlockRead(stamp);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the counters of the operations of this table, to enable, disable or reset them.
+     * All the segments count into these, and the counters are thread safe.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Returns the statistics of the table: the sums of the capacities, displacement
+     * histograms and memory of the segments. Each segment is read under its read lock,
+     * so like {@link #size()} the result is not an exact snapshot while others write.
+     */
+    @Override
+    public DictionaryStats getStats() {
+        int size = 0;
+        long capacity = 0;
+        long memory = 0;
+        long[] probes = new long[0];
+        for (Segment<K, V> segment : segments) {
+            DictionaryStats part;
+            long stamp = segment.lock.readLock();
+            try {
+                part = segment.table.getStats();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            size += part.getSize();
+            capacity += part.getCapacity();
+            memory += part.getMemoryBytes();
+            long[] partProbes = part.getProbeLengths();
+            if (partProbes.length > probes.length) {
+                long[] longer = new long[partProbes.length];
+                System.arraycopy(probes, 0, longer, 0, probes.length);
+                probes = longer;
+            }
+            for (int d = 0; d < partProbes.length; d++) {
+                probes[d] += partProbes[d];
+            }
+        }
+        DictionaryStats stats = new DictionaryStats(getType(), size);
+        stats.setCounters(counters);
+        stats.setCapacity(capacity);
+        stats.setProbeLengths(probes);
+        stats.setMemoryBytes(memory);
+        return stats;
+    }
+
+    /**
+     * Returns the elements sorted by key. Each segment is read under its read lock,
+     * so the result is consistent per segment, but not across segments while other
+     * threads are writing. The segments are already sorted, so they are only merged.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        Pair<K, V>[][] parts = new Pair[segments.length][];
+        int total = 0;
+        for (int i = 0; i < segments.length; i++) {
+            long stamp = segments[i].lock.readLock();
+            try {
+                parts[i] = segments[i].table.toSortedArray();
+            } finally {
+                segments[i].lock.unlockRead(stamp);
+            }
+            total += parts[i].length;
+        }
+        Pair<K, V>[] arr = new Pair[total];
+        Algorithms.parallelMerge(parts, arr);
+        return arr;
+    }
+
+    /**
+     * Returns the elements segment by segment. The elements of a segment are copied
+     * under its read lock when the iteration reaches it, so the iteration sees each
+     * segment consistently, and other threads may write meanwhile.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * Returns a spliterator that splits by segments.
+     */
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        return new SegmentSpliterator(0, segments.length);
+    }
+
+    /**
+     * Calls the action for each key and value, a segment at a time. The action is
+     * called outside the segment locks, so it may use this table.
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Pair<K, V> pair : this) {
+            action.accept(pair.getKey(), pair.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Pair<K, V>[] copySegment(Segment<K, V> segment) {
+        long stamp = segment.lock.readLock();
+        try {
+            Pair<K, V>[] pairs = new Pair[segment.table.size()];
+            int[] count = new int[1];
+            segment.table.forEach((k, v) -> pairs[count[0]++] = new Pair<>(k, v));
+            return pairs;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    private class SegmentSpliterator implements Spliterator<Pair<K, V>> {
+        private int segment;
+        private final int end;
+        private Pair<K, V>[] pairs = null; // Copy of the segment being iterated.
+        private int index = 0;
+
+        SegmentSpliterator(int from, int to) {
+            this.segment = from;
+            this.end = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Pair<K, V>> action) {
+            while (null == pairs || index == pairs.length) {
+                if (segment == end) {
+                    return false;
+                }
+                pairs = copySegment(segments[segment++]);
+                index = 0;
+            }
+            action.accept(pairs[index++]);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Pair<K, V>> trySplit() {
+            if (null != pairs || end - segment < 2) {
+                return null;
+            }
+            int middle = (segment + end) >>> 1;
+            Spliterator<Pair<K, V>> prefix = new SegmentSpliterator(segment, middle);
+            segment = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long estimate = 0;
+            for (int i = segment; i < end; i++) {
+                estimate += segments[i].table.size();
+            }
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+    }
+
+    @Override
+    public void compress() throws OutOfMemoryError {
+        for (Segment<K, V> segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table.compress();
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Compresses each segment for the target load, see {@link KeyValueHashTable#compress(float)}.
+     */
+    public void compress(float targetLoad) throws IllegalArgumentException, OutOfMemoryError {
+        for (Segment<K, V> segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.table.compress(targetLoad);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+}
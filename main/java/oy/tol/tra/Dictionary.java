@@ -1,5 +1,8 @@
 package oy.tol.tra;
 
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
 /**
  * A dictionary is a data structure containing key-value -pairs.
  * It is possible to add these pairs to the data structure, and then
@@ -7,7 +10,7 @@ package oy.tol.tra;
  * The actual concrete data structure that implements a Dictionary can
  * be either a linear array, hash table or binary search tree, for example.
  */
-public interface Dictionary<K extends Comparable<K>, V> {
+public interface Dictionary<K extends Comparable<K>, V> extends Iterable<Pair<K, V>> {
    /**
     * The types of phonebook implementations in this task.
     */
@@ -20,6 +23,8 @@ public interface Dictionary<K extends Comparable<K>, V> {
        * A binary search tree implementation. Not to be confused with binary search.
        */
       BST,
+      /** A read only sorted array, built from another dictionary. */
+      FROZEN,
       /**
        * NONE means not yet implemented.
        * Change the value returned in `getType()` to HASHTABLE or BST when you are
@@ -72,6 +77,44 @@ public interface Dictionary<K extends Comparable<K>, V> {
     */
    boolean add(K key, V value) throws IllegalArgumentException, OutOfMemoryError;
 
+   /**
+    * Adds all the key-value pairs to the dictionary, as if each of them were added with
+    * {@link #add(Object, Object)} in the order of the array. So if the same key is in the
+    * array many times, the last one stays in the dictionary.
+    *
+    * Implementations can do this faster than separate adds, for example by reserving
+    * the room for all the elements once. The default implementation just adds the pairs
+    * one by one. The pairs themselves are not stored in the dictionary.
+    *
+    * @param pairs The key-value pairs to add. Keys and values must not be null.
+    * @throws IllegalArgumentException Throws if any pair, key or value is null.
+    * @throws OutOfMemoryError Throws if memory runs out.
+    */
+   default void addAll(Pair<K, V> [] pairs) throws IllegalArgumentException, OutOfMemoryError {
+      for (Pair<K, V> pair : pairs) {
+         if (null == pair) {
+            throw new IllegalArgumentException("Pair to add cannot be null");
+         }
+         add(pair.getKey(), pair.getValue());
+      }
+   }
+
+   /**
+    * Adds all the key-value pairs to the dictionary in iteration order.
+    * @see #addAll(Pair[])
+    * @param pairs The key-value pairs to add. Keys and values must not be null.
+    * @throws IllegalArgumentException Throws if any pair, key or value is null.
+    * @throws OutOfMemoryError Throws if memory runs out.
+    */
+   default void addAll(Iterable<Pair<K, V>> pairs) throws IllegalArgumentException, OutOfMemoryError {
+      for (Pair<K, V> pair : pairs) {
+         if (null == pair) {
+            throw new IllegalArgumentException("Pair to add cannot be null");
+         }
+         add(pair.getKey(), pair.getValue());
+      }
+   }
+
    /**
     * Finds a value for the given key or returns null if not found.
     *
@@ -81,6 +124,15 @@ public interface Dictionary<K extends Comparable<K>, V> {
     */
    V find(K key) throws IllegalArgumentException;
 
+   /**
+    * Removes the key and its associated value from the dictionary.
+    *
+    * @param key The key to remove. K must implement hashCode.
+    * @return Returns the value that was associated with the key, or null if the key was not found.
+    * @throws IllegalArgumentException Throws if key to remove is null.
+    */
+   V remove(K key) throws IllegalArgumentException;
+
    /**
     * Returns the number of elements in the Dictionary.
     * @return The number of elements in the collection.
@@ -95,6 +147,16 @@ public interface Dictionary<K extends Comparable<K>, V> {
     */
    String getStatus();
 
+   /**
+    * Returns a snapshot of the statistics of the dictionary for monitoring, as numbers
+    * instead of the text of {@link #getStatus()}. The snapshot is taken without changing
+    * the dictionary. By default it has only the type and the size.
+    * @return The statistics.
+    */
+   default DictionaryStats getStats() {
+      return new DictionaryStats(getType(), size());
+   }
+
    /**
     * Returns the contents of the dictionary sorted by ascending key order in a new array.
     * The contents of the Dictionary's (possible) internal data structure are not to be
@@ -104,6 +166,32 @@ public interface Dictionary<K extends Comparable<K>, V> {
     */
    Pair<K,V> [] toSortedArray();
 
+   /**
+    * Returns an iterator over the elements, in the order that is cheapest for the
+    * implementation: in slot order for hash tables, in the order of the tree for trees.
+    * Unlike {@link #toSortedArray()}, nothing is sorted nor copied to an array.
+    * The dictionary must not be changed while iterating, unless the implementation
+    * says otherwise.
+    *
+    * {@link #spliterator()} of the implementations gives the elements in the same order,
+    * and splits them so that a parallel stream can process them in parallel.
+    *
+    * @return Iterator over the key-value pairs.
+    */
+   @Override
+   Iterator<Pair<K, V>> iterator();
+
+   /**
+    * Calls the action for each key and value, in the order of {@link #iterator()}.
+    * Implementations may do this without creating a Pair for each element.
+    * @param action The action to call.
+    */
+   default void forEach(BiConsumer<? super K, ? super V> action) {
+      for (Pair<K, V> pair : this) {
+         action.accept(pair.getKey(), pair.getValue());
+      }
+   }
+
    /**
     * Compresses the internal array so that the array contains only
     * objects, and the size of the array is adjusted downwards accordingly.
@@ -0,0 +1,723 @@
+package oy.tol.tra;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro benchmark for the Dictionary implementations.
+ *
+ * Runs add, find (hit and miss), toSortedArray and compress for every
+ * implemented {@link Dictionary.Type} with generated Person/PhoneNumber
+ * workloads, and reports throughput, latency percentiles and the allocation
+ * rate of the benchmark thread.
+ *
+ * Results can be written to a CSV file and compared against a previously
+ * stored baseline:
+ *
+ * <pre>
+ * java oy.tol.tra.DictionaryBenchmark --sizes 10000,1000000 --out current.csv --baseline baseline.csv
+ * </pre>
+ *
+ * Options: {@code --sizes}, {@code --types}, {@code --ops}, {@code --warmup},
+ * {@code --rounds}, {@code --max-slow}, {@code --cache-size}, {@code --out} and {@code --baseline}.
+ * Run with a large enough heap ({@code -Xmx}) for the 10M entry workloads.
+ *
+ * The multi-threaded operations {@code mt-find} (finds only) and {@code mt-mixed}
+ * (90% finds, 10% adds) are run once for each thread count of {@code --threads},
+ * for example {@code --ops mt-find,mt-mixed --threads 1,2,4,8,16,32}. With
+ * {@code --concurrent true} the thread safe implementations are used, otherwise
+ * every call is made inside a {@code synchronized} block on the dictionary.
+ *
+ * With {@code --incremental true} the hash table grows with incremental rehashing.
+ * Compare the p99.9 and max latencies of {@code add} with and without it, for
+ * example with {@code --ops add --presize false}, where the table starts small and
+ * grows many times.
+ *
+ * The operation {@code add-all} adds the whole workload with one
+ * {@link Dictionary#addAll(Pair[])} call; compare it with {@code add}.
+ *
+ * With {@code --filter true} the hash table and the tree use a Bloom filter and the frozen
+ * array an xor filter to answer finds of missing keys; compare {@code find-miss} with and
+ * without it.
+ *
+ * The {@code FROZEN} type is built from a filled hash table, so its {@code find}
+ * can be compared with the others. It does not support the adding operations.
+ *
+ * The operations {@code sort-fast}, {@code sort-parallel} and {@code sort-radix} sort the workload
+ * pairs with {@link Algorithms#fastSort(Comparable[])}, {@link Algorithms#parallelSort(Comparable[])}
+ * and {@link Algorithms#radixSort(Object[], java.util.function.Function...)} by the names.
+ * They do not use a dictionary, so they are run only with the first type.
+ *
+ * The operation {@code find-zipf} finds the keys with Zipf distributed popularity
+ * (exponent 1.15, where about 1% of the keys get 80% of the finds), and {@code cached-lru}
+ * and {@code cached-tinylfu} do the same through a {@link CachingDictionary} with the
+ * policy. The cache holds {@code --cache-size} entries, by default 1% of the workload, and
+ * its hit ratio is printed on a comment line starting with {@code #}.
+ */
+public class DictionaryBenchmark {
+
+    private static final String[] FIRST_NAMES = { "Bony", "Danar", "Krish", "Hilja", "Yann", "Malachai", "Rholmark",
+            "Richard", "Eira", "Findlay", "Lisandro", "Callin", "Cahlum", "Umair", "Jace", "Zaaine", "Jazeb", "Stuart",
+            "Loui", "Jaida", "Bowie", "Aino", "Eetu", "Helmi", "Ilmari", "Juho", "Kaarlo", "Lempi", "Mikael", "Nelli",
+            "Onni", "Pihla", "Rasmus", "Sanni", "Toivo", "Ukko", "Veeti", "Wilma", "Aada", "Elias", "Iida", "Leevi",
+            "Matilda", "Niilo", "Oona", "Pekka", "Riikka", "Seppo", "Tuuli", "Usva", "Valtteri", "Aleksi", "Emma",
+            "Hugo", "Isla", "Jenna", "Kasper", "Lilja", "Mette", "Noel", "Olivia", "Patrik", "Ronja", "Saga" };
+    private static final String[] LAST_NAMES = { "D\u00fcrer", "Magritte", "Manet", "van Rijn", "Thesleff", "Rivera",
+            "Dali", "Monet", "Renoir", "Degas", "Cezanne", "Gauguin", "Klimt", "Munch", "Schiele", "Kahlo", "Hopper",
+            "Turner", "Constable", "Vermeer", "Rubens", "Titian", "Raphael", "Botticelli", "Caravaggio", "Goya",
+            "Velazquez", "Picasso", "Matisse", "Chagall", "Miro", "Kandinsky", "Malevich", "Mondrian", "Pollock",
+            "Rothko", "Warhol", "Hockney", "Bacon", "Freud", "Gallen-Kallela", "Edelfelt", "Simberg", "Schjerfbeck",
+            "Halonen", "J\u00e4rnefelt", "Enckell", "Wiik", "Pietil\u00e4", "Sallinen", "Thom\u00e9", "Ruokokoski",
+            "Kallio", "Lehtinen", "Virtanen", "Korhonen", "Nieminen", "M\u00e4kinen", "H\u00e4m\u00e4l\u00e4inen", "Laine",
+            "Heikkinen", "Koskinen", "J\u00e4rvinen", "Lehtonen" };
+    private static final String[] OPS = { "add", "add-all", "find-hit", "find-miss", "sorted", "compress", "sort-fast",
+            "sort-parallel", "sort-radix", "find-zipf", "cached-lru", "cached-tinylfu" };
+    private static final double ZIPF_EXPONENT = 1.15;
+
+    private int[] sizes = { 10_000, 100_000, 1_000_000, 10_000_000 };
+    private Dictionary.Type[] types = { Dictionary.Type.SLOW, Dictionary.Type.HASHTABLE, Dictionary.Type.BST,
+            Dictionary.Type.FROZEN };
+    private String[] ops = OPS;
+    private int warmup = 2;
+    private int rounds = 5;
+    private int maxSlow = 50_000;
+    private String outFile = null;
+    private String baselineFile = null;
+    private int[] threads = { 1 };
+    private boolean concurrent = false;
+    private boolean incremental = false;
+    private boolean presize = true;
+    private int cacheSize = 0;
+    private boolean filter = false;
+
+    public static void main(String[] args) throws IOException {
+        DictionaryBenchmark benchmark = new DictionaryBenchmark();
+        benchmark.parseArguments(args);
+        benchmark.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = parseInts(value);
+                    break;
+                case "--threads":
+                    threads = parseInts(value);
+                    break;
+                case "--concurrent":
+                    concurrent = Boolean.parseBoolean(value);
+                    break;
+                case "--incremental":
+                    incremental = Boolean.parseBoolean(value);
+                    break;
+                case "--presize":
+                    presize = Boolean.parseBoolean(value);
+                    break;
+                case "--filter":
+                    filter = Boolean.parseBoolean(value);
+                    break;
+                case "--cache-size":
+                    cacheSize = Integer.parseInt(value);
+                    break;
+                case "--types":
+                    String[] names = value.split(",");
+                    types = new Dictionary.Type[names.length];
+                    for (int t = 0; t < names.length; t++) {
+                        types[t] = Dictionary.Type.valueOf(names[t].trim());
+                    }
+                    break;
+                case "--ops":
+                    ops = value.split(",");
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--rounds":
+                    rounds = Integer.parseInt(value);
+                    break;
+                case "--max-slow":
+                    maxSlow = Integer.parseInt(value);
+                    break;
+                case "--out":
+                    outFile = value;
+                    break;
+                case "--baseline":
+                    baselineFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return numbers;
+    }
+
+    private void run() throws IOException {
+        KeyValueHashTable<String, String> baseline = readBaseline();
+        PrintWriter out = null != outFile ? new PrintWriter(new FileWriter(outFile)) : null;
+        System.out.println(Result.HEADER + (null != baseline ? ",vs_baseline" : ""));
+        if (null != out) {
+            out.println(Result.HEADER);
+        }
+        for (int size : sizes) {
+            Workload workload = new Workload(size);
+            for (Dictionary.Type type : types) {
+                if (type == Dictionary.Type.SLOW && size > maxSlow) {
+                    continue;
+                }
+                if (null == create(type, size)) {
+                    continue;
+                }
+                for (String op : ops) {
+                    op = op.trim();
+                    if (op.startsWith("sort-") && type != types[0]) {
+                        continue;
+                    }
+                    int[] threadCounts = op.startsWith("mt-") ? threads : new int[] { 0 };
+                    for (int threadCount : threadCounts) {
+                        Result result;
+                        try {
+                            result = threadCount > 0 ? measureThreads(type, op, workload, threadCount)
+                                    : measure(type, op, workload);
+                        } catch (RuntimeException | InterruptedException e) {
+                            System.out.println(type + "," + size + "," + op + ",failed: " + e);
+                            continue;
+                        }
+                        String line = result.toString();
+                        if (null != baseline) {
+                            String previous = baseline.find(result.id());
+                            line += null != previous ? result.delta(previous) : ",n/a";
+                        }
+                        System.out.println(line);
+                        if (null != out) {
+                            out.println(result);
+                            out.flush();
+                        }
+                    }
+                }
+            }
+        }
+        if (null != out) {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates an empty dictionary of the given type, or null if the type has no implementation.
+     * With {@code --concurrent true} returns the thread safe implementation when there is one.
+     * With {@code --presize false} the capacity is not reserved in advance.
+     */
+    Dictionary<Person, PhoneNumber> create(Dictionary.Type type, int capacity) {
+        if (!presize) {
+            capacity = 0;
+        }
+        switch (type) {
+            case SLOW:
+                return new KeyValueArray<>(capacity);
+            case HASHTABLE:
+                if (concurrent) {
+                    return new ConcurrentKeyValueHashTable<>(capacity);
+                }
+                KeyValueHashTable<Person, PhoneNumber> table = new KeyValueHashTable<>(capacity, incremental);
+                table.setMembershipFilter(filter);
+                return table;
+            case BST:
+                if (concurrent) {
+                    return new ConcurrentKeyValueBSearchTree<>();
+                }
+                KeyValueBSearchTree<Person, PhoneNumber> tree = new KeyValueBSearchTree<>();
+                tree.setMembershipFilter(filter);
+                return tree;
+            case FROZEN:
+                return new FrozenKeyValueArray<>(new KeyValueArray<Person, PhoneNumber>());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates a dictionary of the given type holding the whole workload.
+     */
+    private Dictionary<Person, PhoneNumber> filled(Dictionary.Type type, Workload workload) {
+        if (type == Dictionary.Type.FROZEN) {
+            Dictionary<Person, PhoneNumber> source = new KeyValueHashTable<>(workload.size);
+            fill(source, workload);
+            FrozenKeyValueArray<Person, PhoneNumber> frozen = new FrozenKeyValueArray<>(source);
+            frozen.setMembershipFilter(filter);
+            return frozen;
+        }
+        Dictionary<Person, PhoneNumber> dictionary = create(type, workload.size);
+        fill(dictionary, workload);
+        return dictionary;
+    }
+
+    private Result measure(Dictionary.Type type, String op, Workload workload) {
+        Result result = new Result(type, workload.size, op);
+        for (int round = 0; round < warmup + rounds; round++) {
+            boolean measured = round >= warmup;
+            // Last round times every operation individually for the latency percentiles,
+            // the others time the whole loop for throughput.
+            boolean perOperation = round == warmup + rounds - 1;
+            Dictionary<Person, PhoneNumber> dictionary = null;
+            Pair<Person, PhoneNumber>[] unsorted = null;
+            if (op.startsWith("sort-")) {
+                unsorted = workload.pairs().clone();
+            } else if (op.startsWith("cached-")) {
+                CachingDictionary.Policy policy = op.equals("cached-lru") ? CachingDictionary.Policy.LRU
+                        : CachingDictionary.Policy.TINY_LFU;
+                int capacity = cacheSize > 0 ? cacheSize : Math.max(16, workload.size / 100);
+                dictionary = new CachingDictionary<>(filled(type, workload), capacity, policy);
+                workload.zipf();
+            } else if (!op.startsWith("add")) {
+                dictionary = filled(type, workload);
+                if (op.equals("find-zipf")) {
+                    workload.zipf(); // Not created inside the timing.
+                }
+            } else {
+                dictionary = create(type, workload.size);
+                workload.pairs(); // Not created inside the timing.
+            }
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long operations = execute(op, dictionary, workload, unsorted, perOperation ? result.latencies : null);
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            if (measured && (!perOperation || rounds == 1)) {
+                result.record(operations, elapsed, allocated);
+            }
+            if (perOperation && dictionary instanceof CachingDictionary) {
+                System.out.println(String.format(Locale.ROOT, "# %s %d %s hit ratio %.4f", type, workload.size, op,
+                        ((CachingDictionary<Person, PhoneNumber>) dictionary).getHitRatio()));
+            }
+        }
+        return result;
+    }
+
+    private Result measureThreads(Dictionary.Type type, String op, Workload workload, int threadCount)
+            throws InterruptedException {
+        Result result = new Result(type, workload.size, op + "@" + threadCount);
+        for (int round = 0; round < warmup + rounds; round++) {
+            boolean measured = round >= warmup;
+            boolean perOperation = round == warmup + rounds - 1;
+            Dictionary<Person, PhoneNumber> dictionary = filled(type, workload);
+            boolean threadSafe = dictionary instanceof ConcurrentKeyValueHashTable
+                    || dictionary instanceof ConcurrentKeyValueBSearchTree
+                    || dictionary instanceof FrozenKeyValueArray;
+            CountDownLatch start = new CountDownLatch(1);
+            Worker[] workers = new Worker[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                workers[i] = new Worker(op, dictionary, threadSafe, workload, i, start, perOperation);
+                workers[i].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            long allocated = 0;
+            for (Worker worker : workers) {
+                worker.join();
+                allocated += worker.allocated;
+                if (perOperation) {
+                    result.latencies.merge(worker.latencies);
+                }
+            }
+            long elapsed = System.nanoTime() - begin;
+            if (measured && (!perOperation || rounds == 1)) {
+                result.record((long) threadCount * workload.size, elapsed, allocated);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Thread of the multi-threaded operations. Each worker makes {@code size} operations
+     * over the keys in its own pseudo random order.
+     */
+    private static class Worker extends Thread {
+        private final String op;
+        private final Dictionary<Person, PhoneNumber> dictionary;
+        private final boolean threadSafe;
+        private final Workload workload;
+        private final int id;
+        private final CountDownLatch start;
+        private final LatencyHistogram latencies;
+        private long allocated = 0;
+
+        Worker(String op, Dictionary<Person, PhoneNumber> dictionary, boolean threadSafe, Workload workload,
+                int id, CountDownLatch start, boolean perOperation) {
+            this.op = op;
+            this.dictionary = dictionary;
+            this.threadSafe = threadSafe;
+            this.workload = workload;
+            this.id = id;
+            this.start = start;
+            this.latencies = perOperation ? new LatencyHistogram() : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long allocatedBefore = allocatedBytes();
+            boolean mixed = op.equals("mt-mixed");
+            int x = 0x9E3779B9 * (id + 1);
+            long blackhole = 0;
+            for (int i = 0; i < workload.size; i++) {
+                // Xorshift, so the order of the keys differs between the threads.
+                x ^= x << 13;
+                x ^= x >>> 17;
+                x ^= x << 5;
+                int index = (x & 0x7fffffff) % workload.size;
+                boolean write = mixed && (x & 0xf00) < 0x1a0; // About 10%.
+                long t = null != latencies ? System.nanoTime() : 0;
+                if (threadSafe) {
+                    blackhole += call(write, index);
+                } else {
+                    synchronized (dictionary) {
+                        blackhole += call(write, index);
+                    }
+                }
+                if (null != latencies) {
+                    latencies.record(System.nanoTime() - t);
+                }
+            }
+            allocated = allocatedBytes() - allocatedBefore;
+            if (blackhole == Long.MIN_VALUE) {
+                System.out.println(blackhole);
+            }
+        }
+
+        private int call(boolean write, int index) {
+            if (write) {
+                return dictionary.add(workload.keys[index], workload.values[index]) ? 1 : 0;
+            }
+            return null != dictionary.find(workload.keys[index]) ? 1 : 0;
+        }
+    }
+
+    private static void fill(Dictionary<Person, PhoneNumber> dictionary, Workload workload) {
+        for (int i = 0; i < workload.size; i++) {
+            dictionary.add(workload.keys[i], workload.values[i]);
+        }
+    }
+
+    private static long execute(String op, Dictionary<Person, PhoneNumber> dictionary, Workload workload,
+            Pair<Person, PhoneNumber>[] unsorted,
+            LatencyHistogram latencies) {
+        long blackhole = 0;
+        long operations = 0;
+        switch (op) {
+            case "add":
+                for (int i = 0; i < workload.size; i++) {
+                    long t = null != latencies ? System.nanoTime() : 0;
+                    dictionary.add(workload.keys[i], workload.values[i]);
+                    if (null != latencies) {
+                        latencies.record(System.nanoTime() - t);
+                    }
+                }
+                operations = workload.size;
+                break;
+            case "add-all":
+                long b = System.nanoTime();
+                dictionary.addAll(workload.pairs());
+                if (null != latencies) {
+                    latencies.record(System.nanoTime() - b);
+                }
+                blackhole += dictionary.size();
+                operations = workload.size;
+                break;
+            case "find-hit":
+            case "find-miss":
+                Person[] keys = op.equals("find-hit") ? workload.keys : workload.missing;
+                for (int i = 0; i < keys.length; i++) {
+                    long t = null != latencies ? System.nanoTime() : 0;
+                    PhoneNumber found = dictionary.find(keys[i]);
+                    if (null != latencies) {
+                        latencies.record(System.nanoTime() - t);
+                    }
+                    blackhole += null != found ? 1 : 0;
+                }
+                operations = keys.length;
+                break;
+            case "find-zipf":
+            case "cached-lru":
+            case "cached-tinylfu":
+                int[] ranks = workload.zipf();
+                for (int i = 0; i < ranks.length; i++) {
+                    long z = null != latencies ? System.nanoTime() : 0;
+                    PhoneNumber found = dictionary.find(workload.keys[ranks[i]]);
+                    if (null != latencies) {
+                        latencies.record(System.nanoTime() - z);
+                    }
+                    blackhole += null != found ? 1 : 0;
+                }
+                operations = ranks.length;
+                break;
+            case "sorted":
+                long t = System.nanoTime();
+                blackhole += dictionary.toSortedArray().length;
+                if (null != latencies) {
+                    latencies.record(System.nanoTime() - t);
+                }
+                operations = 1;
+                break;
+            case "compress":
+                long c = System.nanoTime();
+                dictionary.compress();
+                if (null != latencies) {
+                    latencies.record(System.nanoTime() - c);
+                }
+                blackhole += dictionary.size();
+                operations = 1;
+                break;
+            case "sort-fast":
+            case "sort-parallel":
+            case "sort-radix":
+                long s = System.nanoTime();
+                if (op.equals("sort-fast")) {
+                    Algorithms.fastSort(unsorted);
+                } else if (op.equals("sort-parallel")) {
+                    Algorithms.parallelSort(unsorted);
+                } else {
+                    Algorithms.radixSort(unsorted, p -> p.getKey().getLastName(), p -> p.getKey().getFirstName());
+                }
+                if (null != latencies) {
+                    latencies.record(System.nanoTime() - s);
+                }
+                blackhole += unsorted.length;
+                operations = 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+        if (blackhole == Long.MIN_VALUE) {
+            System.out.println(blackhole);
+        }
+        return operations;
+    }
+
+    /**
+     * Returns the number of bytes the current thread has allocated, or 0 if the JVM does not tell.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private KeyValueHashTable<String, String> readBaseline() throws IOException {
+        if (null == baselineFile) {
+            return null;
+        }
+        KeyValueHashTable<String, String> baseline = new KeyValueHashTable<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(baselineFile))) {
+            String line = reader.readLine(); // Header.
+            while (null != (line = reader.readLine())) {
+                String[] fields = line.split(",");
+                if (fields.length >= 4) {
+                    baseline.add(fields[0] + "," + fields[1] + "," + fields[2], line);
+                }
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Generated phonebook entries. Keys used for the find misses are built from
+     * names not used in the hit keys, so they can never be found.
+     */
+    static class Workload {
+        final int size;
+        final Person[] keys;
+        final PhoneNumber[] values;
+        final Person[] missing;
+        private Pair<Person, PhoneNumber>[] pairs = null;
+        private int[] zipf = null;
+
+        Workload(int size) {
+            this.size = size;
+            Random random = new Random(size);
+            keys = new Person[size];
+            values = new PhoneNumber[size];
+            missing = new Person[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = person(random, "");
+                values[i] = new PhoneNumber(Integer.toString(random.nextInt(400)),
+                        String.format(Locale.ROOT, "%03d", random.nextInt(100)), Integer.toString(7_000_000 + i));
+                missing[i] = person(random, "Mc");
+            }
+        }
+
+        /**
+         * Returns the keys and values as pairs, created at the first call.
+         */
+        @SuppressWarnings("unchecked")
+        Pair<Person, PhoneNumber>[] pairs() {
+            if (null == pairs) {
+                pairs = new Pair[size];
+                for (int i = 0; i < size; i++) {
+                    pairs[i] = new Pair<>(keys[i], values[i]);
+                }
+            }
+            return pairs;
+        }
+
+        /**
+         * Returns the indices of the keys to find, Zipf distributed so that the key at
+         * index i is found about as often as 1 / (i + 1)^s, created at the first call.
+         * Draws from the continuous inverse distribution function.
+         */
+        int[] zipf() {
+            if (null == zipf) {
+                zipf = new int[size];
+                Random random = new Random(size + 1L);
+                double a = 1.0 - ZIPF_EXPONENT;
+                double top = Math.pow(size + 1.0, a) - 1.0;
+                for (int i = 0; i < size; i++) {
+                    double rank = Math.pow(top * random.nextDouble() + 1.0, 1.0 / a);
+                    zipf[i] = Math.min(size, (int) rank) - 1;
+                }
+            }
+            return zipf;
+        }
+
+        private static Person person(Random random, String lastNamePrefix) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = lastNamePrefix + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + "-"
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            return new Person(first, last);
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond latencies. Each power of two is split into
+     * 16 linear buckets, so the reported percentiles are within about 6% of the
+     * actual value, and recording does not allocate.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts[index(nanos)]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+            return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + 3;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+        }
+
+        long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        void merge(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+    }
+
+    private static class Result {
+        static final String HEADER = "type,size,op,ops_per_s,p50_ns,p90_ns,p99_ns,p99.9_ns,max_ns,bytes_per_op,alloc_mb_per_s";
+        final Dictionary.Type type;
+        final int size;
+        final String op;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+
+        Result(Dictionary.Type type, int size, String op) {
+            this.type = type;
+            this.size = size;
+            this.op = op;
+        }
+
+        void record(long operations, long nanos, long allocated) {
+            this.operations += operations;
+            this.nanos += nanos;
+            this.allocated += allocated;
+        }
+
+        String id() {
+            return type + "," + size + "," + op;
+        }
+
+        double throughput() {
+            return nanos > 0 ? operations * 1e9 / nanos : 0;
+        }
+
+        String delta(String baseline) {
+            double previous = Double.parseDouble(baseline.split(",")[3]);
+            return String.format(Locale.ROOT, ",%+.1f%%", previous > 0 ? (throughput() - previous) / previous * 100.0 : 0.0);
+        }
+
+        @Override
+        public String toString() {
+            double bytesPerOp = operations > 0 ? (double) allocated / operations : 0;
+            double allocRate = nanos > 0 ? allocated / (nanos / 1e9) / (1024 * 1024) : 0;
+            return String.format(Locale.ROOT, "%s,%.1f,%d,%d,%d,%d,%d,%.1f,%.1f", id(), throughput(),
+                    latencies.percentile(50), latencies.percentile(90), latencies.percentile(99),
+                    latencies.percentile(99.9), latencies.max(), bytesPerOp, allocRate);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package oy.tol.tra;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the operations of a dictionary, updated on the hot path.
+ *
+ * The counters are {@link LongAdder}s, so counting costs only an addition to a cell of
+ * the counting thread, and threads do not contend for one shared value. Reading a counter
+ * sums the cells, which is done only when the statistics are polled. Still, an atomic
+ * addition per find is a visible part of the time of a hash table lookup, so the counters
+ * are disabled until {@link #setEnabled(boolean)} is called, and while disabled counting is
+ * a single check of a flag. Unlike the status counters of the dictionaries, these are not
+ * reset by {@link Dictionary#ensureCapacity(int)}.
+ */
+public final class DictionaryCounters {
+    private volatile boolean enabled = false;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder resizes = new LongAdder();
+    private final LongAdder resizeNanos = new LongAdder();
+    private final LongAdder filterRejects = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+    private final LongAccumulator maxResizeNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Enables or disables counting. Disabling keeps the counts so far.
+     * @param enabled If false, the operations are not counted.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets all the counts to zero.
+     */
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        inserts.reset();
+        updates.reset();
+        removes.reset();
+        resizes.reset();
+        resizeNanos.reset();
+        maxResizeNanos.reset();
+        filterRejects.reset();
+        filterFalsePositives.reset();
+    }
+
+    void lookup(boolean found) {
+        if (enabled) {
+            (found ? hits : misses).increment();
+        }
+    }
+
+    /**
+     * Counts a find of a missing key: rejected by the membership filter, or passed it
+     * and was searched for nothing.
+     */
+    void filtered(boolean rejected) {
+        if (enabled) {
+            (rejected ? filterRejects : filterFalsePositives).increment();
+        }
+    }
+
+    void added(boolean inserted) {
+        if (enabled) {
+            (inserted ? inserts : updates).increment();
+        }
+    }
+
+    void added(long inserted, long updated) {
+        if (enabled) {
+            inserts.add(inserted);
+            updates.add(updated);
+        }
+    }
+
+    void removed() {
+        if (enabled) {
+            removes.increment();
+        }
+    }
+
+    void resized(long nanos) {
+        if (enabled) {
+            resizes.increment();
+            resizeNanos.add(nanos);
+            maxResizeNanos.accumulate(nanos);
+        }
+    }
+
+    /** Number of finds that found the key. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Number of finds that did not find the key. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Number of adds of a new key. */
+    public long getInserts() {
+        return inserts.sum();
+    }
+
+    /** Number of adds that replaced the value of a key. */
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    /** Number of removes that removed a key. */
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    /** Number of times the internal array was reallocated. */
+    public long getResizes() {
+        return resizes.sum();
+    }
+
+    /** Total time spent reallocating, in nanoseconds. */
+    public long getResizeNanos() {
+        return resizeNanos.sum();
+    }
+
+    /** The longest reallocation, in nanoseconds. */
+    public long getMaxResizeNanos() {
+        return maxResizeNanos.get();
+    }
+
+    /** Number of finds answered by the membership filter without searching. */
+    public long getFilterRejects() {
+        return filterRejects.sum();
+    }
+
+    /** Number of finds of missing keys that the membership filter let through. */
+    public long getFilterFalsePositives() {
+        return filterFalsePositives.sum();
+    }
+}
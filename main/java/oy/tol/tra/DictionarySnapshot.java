@@ -0,0 +1,199 @@
+package oy.tol.tra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the elements of any {@link Dictionary} into a binary snapshot, and restores them.
+ *
+ * Format (big endian):
+ * <pre>
+ * header  magic (int), version (int), number of elements (long)
+ * blocks  number of elements (int), length in bytes (int), the elements, CRC32 of the elements (int)
+ * end     a block header with 0 elements and 0 bytes
+ * </pre>
+ * An element is its key followed by its value, written with the given {@link Codec}s;
+ * strings are length prefixed UTF-8, see {@link Codec#writeString(String, java.io.DataOutput)}.
+ * The elements are written in {@link Dictionary#toSortedArray()} order, that is in the
+ * {@link Comparable#compareTo} order of the keys, a block at a time, so writing needs memory
+ * only for the sorted array and one block.
+ *
+ * Restoring into a key ordered {@link KeyValueBSearchTree} ({@code new KeyValueBSearchTree<>(true)})
+ * builds the tree in O(n), as the elements come in the order of the tree. The default tree is
+ * ordered by the hash codes of the keys, and {@link Person} keys compare by name, so restoring
+ * into it sorts the elements by hash once, in O(n log n).
+ */
+public final class DictionarySnapshot {
+    static final int MAGIC = 0x5048534E; // "PHSN"
+    static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024; // Pairs before the first verified block.
+
+    private DictionarySnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the dictionary into a file.
+     * @see #write(Dictionary, OutputStream, Codec, Codec)
+     */
+    public static <K extends Comparable<K>, V> void write(Dictionary<K, V> dictionary, Path file,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(dictionary, out, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the dictionary. The stream is flushed but not closed.
+     * @param dictionary The dictionary to save.
+     * @param out Where to write.
+     * @param keyCodec Writes the keys.
+     * @param valueCodec Writes the values.
+     * @throws IOException If writing fails.
+     */
+    public static <K extends Comparable<K>, V> void write(Dictionary<K, V> dictionary, OutputStream out,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Pair<K, V>[] pairs = dictionary.toSortedArray();
+        int count = null != pairs ? pairs.length : 0;
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BLOCK_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(count);
+        ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        DataOutputStream blockData = new DataOutputStream(block);
+        CRC32 crc = new CRC32();
+        int inBlock = 0;
+        for (int i = 0; i < count; i++) {
+            keyCodec.write(pairs[i].getKey(), blockData);
+            valueCodec.write(pairs[i].getValue(), blockData);
+            inBlock++;
+            if (block.size() >= BLOCK_SIZE) {
+                writeBlock(data, block, inBlock, crc);
+                inBlock = 0;
+            }
+        }
+        if (inBlock > 0) {
+            writeBlock(data, block, inBlock, crc);
+        }
+        data.writeInt(0);
+        data.writeInt(0);
+        data.flush();
+    }
+
+    private static void writeBlock(DataOutputStream data, ByteArrayOutputStream block, int count, CRC32 crc)
+            throws IOException {
+        if (block.size() > MAX_BLOCK_SIZE) {
+            throw new IOException("Element too large for a snapshot block");
+        }
+        byte[] bytes = block.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        data.writeInt(count);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+        data.writeInt((int) crc.getValue());
+        block.reset();
+    }
+
+    /**
+     * Restores a snapshot file into the dictionary.
+     * @see #read(InputStream, Dictionary, Codec, Codec)
+     */
+    public static <K extends Comparable<K>, V> int read(Path file, Dictionary<K, V> dictionary,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in, dictionary, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * Restores a snapshot into the dictionary. The elements are read into one array and
+     * added with a single {@link Dictionary#addAll(Pair[])}, so the hash table is sized once
+     * and a key ordered tree is built in O(n). A tree ordered by hash sorts the array once
+     * first, see the class description. Nothing is added if the snapshot is corrupted.
+     * @param in The snapshot. Read to the end marker, not closed.
+     * @param dictionary Where to add the elements.
+     * @param keyCodec Reads the keys; must be the one the snapshot was written with.
+     * @param valueCodec Reads the values; must be the one the snapshot was written with.
+     * @return Number of the elements read.
+     * @throws IOException If reading fails, or the snapshot is not valid.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<K>, V> int read(InputStream in, Dictionary<K, V> dictionary,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BLOCK_SIZE));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a dictionary snapshot");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        long count = data.readLong();
+        if (count < 0 || count > Integer.MAX_VALUE - 8) {
+            throw new IOException("Corrupted snapshot, " + count + " elements");
+        }
+        // The header has no checksum, so the array grows with the elements of the verified
+        // blocks instead of trusting the count: a corrupted count must not exhaust the memory.
+        Pair<K, V>[] pairs = new Pair[(int) Math.min(count, INITIAL_CAPACITY)];
+        int read = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int inBlock = data.readInt();
+            int length = data.readInt();
+            if (0 == inBlock && 0 == length) {
+                break;
+            }
+            if (inBlock <= 0 || length <= 0 || length > MAX_BLOCK_SIZE || inBlock > count - read) {
+                throw new IOException("Corrupted snapshot block");
+            }
+            byte[] bytes = new byte[length];
+            data.readFully(bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if (data.readInt() != (int) crc.getValue()) {
+                throw new IOException("Snapshot block checksum does not match");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                for (int i = 0; i < inBlock; i++) {
+                    K key = keyCodec.read(buffer);
+                    if (read == pairs.length) {
+                        pairs = copyOf(pairs, (int) Math.min(count, 2L * pairs.length));
+                    }
+                    pairs[read++] = new Pair<>(key, valueCodec.read(buffer));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupted snapshot block", e);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Corrupted snapshot block");
+            }
+        }
+        if (read != count) {
+            throw new IOException("Snapshot has " + read + " elements, expected " + count);
+        }
+        dictionary.addAll(pairs);
+        return read;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>, V> Pair<K, V>[] copyOf(Pair<K, V>[] pairs, int length) {
+        Pair<K, V>[] copy = new Pair[length];
+        for (int i = 0; i < pairs.length; i++) {
+            copy[i] = pairs[i];
+        }
+        return copy;
+    }
+}
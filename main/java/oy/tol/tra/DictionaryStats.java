@@ -0,0 +1,238 @@
+package oy.tol.tra;
+
+/**
+ * A snapshot of the statistics of a dictionary, see {@link Dictionary#getStats()}.
+ *
+ * The probe length histogram tells how much work finding the elements takes: in a hash
+ * table the count in index d is the number of elements d slots away from their home slot,
+ * in a tree it is the number of nodes at depth d. The chain length histogram of a tree
+ * counts the nodes by the number of keys that collide in them. The memory estimate covers
+ * the structure itself, not the key and value objects, and assumes compressed references.
+ *
+ * If the dictionary has a membership filter, the false positive rate measured from the finds
+ * of missing keys and the rate expected from the contents of the filter are given.
+ *
+ * Values that a dictionary does not have are zero, and the histograms are then empty.
+ * Use a {@link StatsExporter} to publish the statistics to a monitoring system.
+ */
+public final class DictionaryStats {
+    private static final long[] EMPTY = new long[0];
+
+    private final Dictionary.Type type;
+    private final int size;
+    private long capacity;
+    private long hits;
+    private long misses;
+    private long inserts;
+    private long updates;
+    private long removes;
+    private long resizes;
+    private long resizeNanos;
+    private long maxResizeNanos;
+    private long[] probeLengths = EMPTY;
+    private long[] chainLengths = EMPTY;
+    private int height;
+    private long memoryBytes;
+    private long filterRejects;
+    private long filterFalsePositives;
+    private boolean filter;
+    private double expectedFalsePositiveRate;
+    private long filterBytes;
+
+    /**
+     * Estimates the size of an array in bytes: a 16 byte header and the elements,
+     * rounded up to 8 bytes.
+     */
+    static long arrayBytes(long length, int elementBytes) {
+        return (16 + length * elementBytes + 7) & ~7L;
+    }
+
+    DictionaryStats(Dictionary.Type type, int size) {
+        this.type = type;
+        this.size = size;
+    }
+
+    void setCounters(DictionaryCounters counters) {
+        hits = counters.getHits();
+        misses = counters.getMisses();
+        inserts = counters.getInserts();
+        updates = counters.getUpdates();
+        removes = counters.getRemoves();
+        resizes = counters.getResizes();
+        resizeNanos = counters.getResizeNanos();
+        maxResizeNanos = counters.getMaxResizeNanos();
+        filterRejects = counters.getFilterRejects();
+        filterFalsePositives = counters.getFilterFalsePositives();
+    }
+
+    void setFilter(double expectedFalsePositiveRate, long filterBytes) {
+        this.filter = true;
+        this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+        this.filterBytes = filterBytes;
+    }
+
+    void setCapacity(long capacity) {
+        this.capacity = capacity;
+    }
+
+    void setProbeLengths(long[] probeLengths) {
+        this.probeLengths = probeLengths;
+    }
+
+    void setChainLengths(long[] chainLengths) {
+        this.chainLengths = chainLengths;
+    }
+
+    void setHeight(int height) {
+        this.height = height;
+    }
+
+    void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+    public Dictionary.Type getType() {
+        return type;
+    }
+
+    /** Number of elements. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Number of slots of a hash table, or nodes of a tree. */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInserts() {
+        return inserts;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    public long getRemoves() {
+        return removes;
+    }
+
+    public long getResizes() {
+        return resizes;
+    }
+
+    public long getResizeNanos() {
+        return resizeNanos;
+    }
+
+    public long getMaxResizeNanos() {
+        return maxResizeNanos;
+    }
+
+    /**
+     * Returns the probe length histogram, the index is the probe length.
+     */
+    public long[] getProbeLengths() {
+        return probeLengths.clone();
+    }
+
+    /**
+     * Returns the chain length histogram, the index is the number of keys in a node.
+     */
+    public long[] getChainLengths() {
+        return chainLengths.clone();
+    }
+
+    /** The longest probe length, or -1 if there are no elements. */
+    public int getMaxProbeLength() {
+        for (int d = probeLengths.length - 1; d >= 0; d--) {
+            if (probeLengths[d] > 0) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    /** The average probe length of the elements. */
+    public double getMeanProbeLength() {
+        long elements = 0;
+        long total = 0;
+        for (int d = 0; d < probeLengths.length; d++) {
+            elements += probeLengths[d];
+            total += d * probeLengths[d];
+        }
+        return elements > 0 ? (double) total / elements : 0.0;
+    }
+
+    /** Height of a tree. */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Estimated size of the structure in bytes, including the membership filter. */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /** Tells whether the dictionary has a membership filter. */
+    public boolean hasFilter() {
+        return filter;
+    }
+
+    /** Number of finds the membership filter answered without searching. */
+    public long getFilterRejects() {
+        return filterRejects;
+    }
+
+    /** Number of finds of missing keys the membership filter let through. */
+    public long getFilterFalsePositives() {
+        return filterFalsePositives;
+    }
+
+    /**
+     * The share of the finds of missing keys that the membership filter let through,
+     * or 0 if no missing keys have been counted.
+     */
+    public double getFalsePositiveRate() {
+        long missing = filterRejects + filterFalsePositives;
+        return missing > 0 ? (double) filterFalsePositives / missing : 0.0;
+    }
+
+    /** The false positive rate expected from the contents of the membership filter. */
+    public double getExpectedFalsePositiveRate() {
+        return expectedFalsePositiveRate;
+    }
+
+    /** Estimated size of the membership filter in bytes. */
+    public long getFilterBytes() {
+        return filterBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s with %d elements, capacity %d, about %d bytes.%n", type, size, capacity,
+                memoryBytes));
+        sb.append(String.format("Finds: %d hits, %d misses. Adds: %d new, %d updated. Removes: %d.%n", hits, misses,
+                inserts, updates, removes));
+        sb.append(String.format("Resized %d times in %.3f ms, the longest took %.3f ms.%n", resizes,
+                resizeNanos / 1e6, maxResizeNanos / 1e6));
+        sb.append(String.format("Probe length mean %.2f, max %d.%n", getMeanProbeLength(), getMaxProbeLength()));
+        if (height > 0) {
+            sb.append(String.format("Height %d.%n", height));
+        }
+        if (filter) {
+            sb.append(String.format("Filter of %d bytes rejected %d finds, false positive rate %.4f (expected %.4f).%n",
+                    filterBytes, filterRejects, getFalsePositiveRate(), expectedFalsePositiveRate));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,356 @@
+package oy.tol.tra;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * A read only dictionary in a sorted array, for data that is loaded once and then only searched.
+ *
+ * The keys are not kept in sorted order but in Eytzinger order: the array is a complete
+ * binary search tree in breadth first order, the root in index 1 and the children of
+ * index k in indices 2k and 2k+1. A search then reads the array from the beginning towards
+ * the end, the first levels of the tree share a few cache lines that stay in the cache, and
+ * the next indices to read are known in advance, so the CPU can fetch them early. There are
+ * no node objects nor pointers, only two flat arrays.
+ *
+ * The search loop has no data dependent branch: each step only computes the next index from
+ * the comparison result, so there are no mispredictions to pay for.
+ *
+ * An optional {@link XorFilter} answers most finds of missing keys without searching,
+ * see {@link #setMembershipFilter(boolean)}.
+ *
+ * Adding and removing throw {@link UnsupportedOperationException}.
+ */
+public class FrozenKeyValueArray<K extends Comparable<K>, V> implements Dictionary<K, V> {
+
+    // Index 0 is not used, the tree starts from index 1.
+    private final Object[] keys;
+    private final Object[] values;
+    private final int count;
+    private final DictionaryCounters counters = new DictionaryCounters();
+    private volatile XorFilter filter; // Null when the membership filter is not used.
+
+    /**
+     * Creates the array of the elements of a dictionary.
+     * @param dictionary The elements to copy.
+     */
+    public FrozenKeyValueArray(Dictionary<K, V> dictionary) {
+        this(dictionary.toSortedArray());
+    }
+
+    /**
+     * Creates the array of the pairs. Usually the pairs come from {@link Dictionary#toSortedArray()},
+     * but if they are not sorted, they are sorted first. The keys must be unique.
+     * @param pairs The elements.
+     */
+    @SuppressWarnings("unchecked")
+    public FrozenKeyValueArray(Pair<K, V>[] pairs) {
+        if (null == pairs) {
+            pairs = new Pair[0];
+        }
+        for (int i = 1; i < pairs.length; i++) {
+            if (pairs[i - 1].compareTo(pairs[i]) > 0) {
+                pairs = pairs.clone();
+                Algorithms.fastSort(pairs);
+                break;
+            }
+        }
+        count = pairs.length;
+        keys = new Object[count + 1];
+        values = new Object[count + 1];
+        fill(pairs, 0, 1);
+    }
+
+    /**
+     * Places the sorted pairs in the subtree of index k with an in-order walk.
+     * @return Index of the next pair to place.
+     */
+    private int fill(Pair<K, V>[] sorted, int next, int k) {
+        if (k <= count) {
+            next = fill(sorted, next, 2 * k);
+            keys[k] = sorted[next].getKey();
+            values[k] = sorted[next].getValue();
+            next++;
+            next = fill(sorted, next, 2 * k + 1);
+        }
+        return next;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.FROZEN;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Finds the value of the key.
+     * The loop descends to a leaf, going right when the key of the index is smaller than
+     * the searched key. The path taken is the bits of the final index, and the last left
+     * turn of it is the first key not smaller than the searched one. Keys that compare equal
+     * but are not equal (like persons with the same hash) follow that in order, so they are
+     * checked by walking to the in-order successors.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public V find(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        XorFilter xor = filter;
+        if (null != xor && !xor.mightContain(key.hashCode())) {
+            counters.filtered(true);
+            counters.lookup(false);
+            return null;
+        }
+        int k = 1;
+        while (k <= count) {
+            k = 2 * k + (((K) keys[k]).compareTo(key) < 0 ? 1 : 0);
+        }
+        // Drop the trailing right turns and the last left turn.
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        while (k != 0 && ((K) keys[k]).compareTo(key) == 0) {
+            if (key.equals(keys[k])) {
+                counters.lookup(true);
+                return (V) values[k];
+            }
+            k = successor(k);
+        }
+        if (null != xor) {
+            counters.filtered(false);
+        }
+        counters.lookup(false);
+        return null;
+    }
+
+    /**
+     * Enables or disables the membership filter. The keys do not change, so the filter is a
+     * static {@link XorFilter} of their hash codes, built once here: about 10 bits per key,
+     * and 0.4% of the missing keys pass it to the search.
+     * @param enabled If true, the filter is built, if false, it is dropped.
+     */
+    public void setMembershipFilter(boolean enabled) {
+        if (!enabled) {
+            filter = null;
+            return;
+        }
+        int[] hashes = new int[count];
+        for (int k = 1; k <= count; k++) {
+            hashes[k - 1] = keys[k].hashCode();
+        }
+        filter = new XorFilter(hashes);
+    }
+
+    /**
+     * Returns the counters of the finds of this array, to enable, disable or reset them.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    @Override
+    public DictionaryStats getStats() {
+        DictionaryStats stats = new DictionaryStats(getType(), count);
+        stats.setCounters(counters);
+        stats.setCapacity(count);
+        long memory = 2 * DictionaryStats.arrayBytes(count + 1, 4);
+        XorFilter xor = filter;
+        if (null != xor) {
+            stats.setFilter(xor.expectedFalsePositiveRate(), xor.memoryBytes());
+            memory += xor.memoryBytes();
+        }
+        stats.setMemoryBytes(memory);
+        return stats;
+    }
+
+    /**
+     * Returns the index of the next key in sorted order, or 0 if k is the last one.
+     */
+    private int successor(int k) {
+        if (2 * k + 1 <= count) {
+            k = 2 * k + 1;
+            while (2 * k <= count) {
+                k = 2 * k;
+            }
+            return k;
+        }
+        // Up while coming from a right child, then one more step up.
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k;
+    }
+
+    private int first() {
+        if (0 == count) {
+            return 0;
+        }
+        int k = 1;
+        while (2 * k <= count) {
+            k = 2 * k;
+        }
+        return k;
+    }
+
+    @Override
+    public String getStatus() {
+        return String.format("Frozen array has %d elements in %d levels.%n", count,
+                32 - Integer.numberOfLeadingZeros(count));
+    }
+
+    /**
+     * Returns the elements in sorted order. The array already is a search tree,
+     * so an in-order walk gives the order without sorting.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        Pair<K, V>[] arr = new Pair[count];
+        int i = 0;
+        for (int k = first(); k != 0; k = successor(k)) {
+            arr[i++] = new Pair<>((K) keys[k], (V) values[k]);
+        }
+        return arr;
+    }
+
+    /**
+     * Returns the elements in sorted order.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return new Iterator<Pair<K, V>>() {
+            private int k = first();
+
+            @Override
+            public boolean hasNext() {
+                return k != 0;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Pair<K, V> next() {
+                if (k == 0) {
+                    throw new NoSuchElementException();
+                }
+                Pair<K, V> pair = new Pair<>((K) keys[k], (V) values[k]);
+                k = successor(k);
+                return pair;
+            }
+        };
+    }
+
+    /**
+     * Returns the elements in sorted order, like {@link #iterator()}. The spliterator covers
+     * a range of in-order ranks, not of array indices, and splitting halves the range, so
+     * parallel streams still divide the work evenly.
+     */
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        return new FrozenSpliterator(0, count);
+    }
+
+    private class FrozenSpliterator extends IndexSpliterator<K, V> {
+        private int rank = -1; // Rank of the array index k.
+        private int k;
+
+        FrozenSpliterator(int from, int to) {
+            super(from, to, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT
+                    | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.IMMUTABLE);
+        }
+
+        /**
+         * Returns the pair of the given rank. The ranks are read in increasing order,
+         * so only the first one is searched from the root, the rest are successors.
+         */
+        @SuppressWarnings("unchecked")
+        @Override
+        Pair<K, V> pairAt(int index) {
+            k = (index == rank + 1 && rank >= 0) ? successor(k) : indexOfRank(index);
+            rank = index;
+            return new Pair<>((K) keys[k], (V) values[k]);
+        }
+
+        @Override
+        IndexSpliterator<K, V> create(int from, int to) {
+            return new FrozenSpliterator(from, to);
+        }
+    }
+
+    /**
+     * Returns the array index of the key that has the given number of smaller keys.
+     * Descends from the root, comparing the rank with the size of the left subtree.
+     */
+    private int indexOfRank(int rank) {
+        int k = 1;
+        while (true) {
+            int left = subtreeSize(2 * k);
+            if (rank == left) {
+                return k;
+            }
+            if (rank < left) {
+                k = 2 * k;
+            } else {
+                rank -= left + 1;
+                k = 2 * k + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys in the subtree of index k, level by level.
+     */
+    private int subtreeSize(int k) {
+        int size = 0;
+        for (long first = k, last = k; first <= count; first = 2 * first, last = 2 * last + 1) {
+            size += (int) (Math.min(last, count) - first + 1);
+        }
+        return size;
+    }
+
+    /**
+     * Calls the action for each key and value in sorted order, like {@link #iterator()},
+     * without creating Pairs.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int k = first(); k != 0; k = successor(k)) {
+            action.accept((K) keys[k], (V) values[k]);
+        }
+    }
+
+    /**
+     * The array is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public boolean add(K key, V value) {
+        throw new UnsupportedOperationException("Frozen array is read only");
+    }
+
+    /**
+     * The array is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public V remove(K key) {
+        throw new UnsupportedOperationException("Frozen array is read only");
+    }
+
+    /**
+     * The array is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public void ensureCapacity(int size) {
+        throw new UnsupportedOperationException("Frozen array is read only");
+    }
+
+    @Override
+    public void compress() {
+        return;
+    }
+}
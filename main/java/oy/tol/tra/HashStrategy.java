@@ -0,0 +1,122 @@
+package oy.tol.tra;
+
+/**
+ * Computes the hashes of the keys for {@link KeyValueHashTable}.
+ *
+ * The standard strategy uses {@code hashCode} of the keys, which anyone can predict: a file
+ * of crafted keys with the same hash code makes every search of the table go through all of
+ * them. The seeded strategies hash the characters of the keys with SipHash using a secret
+ * random key, so the hashes cannot be predicted without knowing the seed.
+ *
+ * The hashes are used directly for indexing a power of two table, so their low bits
+ * must depend on all of the key.
+ */
+@FunctionalInterface
+public interface HashStrategy<K> {
+
+    /**
+     * Hashes the key.
+     * @param key The key, not null.
+     * @return The hash.
+     */
+    int hash(K key);
+
+    /**
+     * Returns a strategy like this one with a new seed. The table calls this when the keys
+     * collide too much, and then rehashes all the keys with the returned strategy.
+     * By default the strategy has no seed and is returned as it is.
+     * @param seed The new seed.
+     * @return The strategy to use from now on.
+     */
+    default HashStrategy<K> reseed(long seed) {
+        return this;
+    }
+
+    /**
+     * Returns the strategy hashing with the mixed {@code hashCode} of the keys. This is the
+     * default of the table. Reseeding it returns {@link #randomized(long)}.
+     */
+    static <K> HashStrategy<K> standard() {
+        return new HashStrategy<K>() {
+            @Override
+            public int hash(K key) {
+                return Hashing.mix(key.hashCode());
+            }
+
+            @Override
+            public HashStrategy<K> reseed(long seed) {
+                return randomized(seed);
+            }
+        };
+    }
+
+    /**
+     * Returns a seeded strategy for strings.
+     * @param seed The seed.
+     */
+    static HashStrategy<String> strings(long seed) {
+        long k0 = seed;
+        long k1 = Hashing.sipKey(seed);
+        return new HashStrategy<String>() {
+            @Override
+            public int hash(String key) {
+                return (int) Hashing.sipHash(k0, k1, key, null);
+            }
+
+            @Override
+            public HashStrategy<String> reseed(long seed) {
+                return strings(seed);
+            }
+        };
+    }
+
+    /**
+     * Returns a seeded strategy for persons, hashing both of the names.
+     * @param seed The seed.
+     */
+    static HashStrategy<Person> persons(long seed) {
+        long k0 = seed;
+        long k1 = Hashing.sipKey(seed);
+        return new HashStrategy<Person>() {
+            @Override
+            public int hash(Person key) {
+                return (int) Hashing.sipHash(k0, k1, key.getFirstName(), key.getLastName());
+            }
+
+            @Override
+            public HashStrategy<Person> reseed(long seed) {
+                return persons(seed);
+            }
+        };
+    }
+
+    /**
+     * Returns a seeded strategy for any keys. Strings and persons are hashed like with
+     * {@link #strings(long)} and {@link #persons(long)}. Other keys only have their hash code,
+     * so it is mixed with the seed; that spreads the keys differently with every seed, but
+     * keys with equal hash codes still collide.
+     * @param seed The seed.
+     */
+    static <K> HashStrategy<K> randomized(long seed) {
+        long k0 = seed;
+        long k1 = Hashing.sipKey(seed);
+        return new HashStrategy<K>() {
+            @Override
+            public int hash(K key) {
+                if (key instanceof String) {
+                    return (int) Hashing.sipHash(k0, k1, (String) key, null);
+                }
+                if (key instanceof Person) {
+                    Person person = (Person) key;
+                    return (int) Hashing.sipHash(k0, k1, person.getFirstName(), person.getLastName());
+                }
+                return Hashing.mix(key.hashCode() ^ k1);
+            }
+
+            @Override
+            public HashStrategy<K> reseed(long seed) {
+                return randomized(seed);
+            }
+        };
+    }
+}
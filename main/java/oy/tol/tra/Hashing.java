@@ -0,0 +1,127 @@
+package oy.tol.tra;
+
+/**
+ * Hash mixing and table sizing helpers shared by the hash table implementations.
+ */
+final class Hashing {
+    /** Largest power of two table size an int indexed array can have. */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private Hashing() {
+    }
+
+    /**
+     * Spreads the bits of a hash code so that the lowest bits, which are used
+     * for indexing a power of two table, depend on all the bits of the hash.
+     * This is the finalizer of MurmurHash3.
+     * @param h The hash code to mix.
+     * @return The mixed hash.
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Mixes a 64 bit value into a 32 bit hash (the MurmurHash3 64 bit finalizer).
+     * @param h The value to mix.
+     * @return The mixed hash.
+     */
+    static int mix(long h) {
+        return (int) mix64(h);
+    }
+
+    /**
+     * Mixes a 64 bit value into a 64 bit hash (the MurmurHash3 64 bit finalizer).
+     * @param h The value to mix.
+     * @return The mixed hash.
+     */
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * SipHash-1-3 of the chars of one or two strings, with the 128 bit key (k0, k1).
+     * The chars are read four at a time into 64 bit words. When there are two strings,
+     * the noncharacter U+FFFF is hashed between them, so different splits of the same
+     * chars get different hashes.
+     * Source: https://en.wikipedia.org/wiki/SipHash
+     * @param k0 First half of the key.
+     * @param k1 Second half of the key.
+     * @param first The first string.
+     * @param second The second string, or null.
+     * @return The hash.
+     */
+    static long sipHash(long k0, long k1, String first, String second) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        int length = null == second ? first.length() : first.length() + 1 + second.length();
+        // The last word has the remaining chars and the length in bytes in its top byte.
+        for (int i = 0; i <= length; i += 4) {
+            long m = 0;
+            int end = Math.min(i + 4, length);
+            for (int j = i; j < end; j++) {
+                m |= (long) charAt(first, second, j) << ((j - i) * 16);
+            }
+            if (end - i < 4) {
+                m |= (long) (length * 2) << 56;
+                i = length; // This was the last word.
+            }
+            v3 ^= m;
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int round = 0; round < 3; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static char charAt(String first, String second, int i) {
+        if (i < first.length()) {
+            return first.charAt(i);
+        }
+        return i == first.length() ? '\uffff' : second.charAt(i - first.length() - 1);
+    }
+
+    /**
+     * Derives the second half of a SipHash key from a seed.
+     */
+    static long sipKey(long seed) {
+        return Long.rotateLeft(seed, 32) ^ 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Returns the smallest power of two that is at least {@code n}.
+     * @param n The minimum size.
+     * @return Power of two size, at least 1.
+     * @throws OutOfMemoryError If the size would not fit into an array.
+     */
+    static int tableSizeFor(long n) throws OutOfMemoryError {
+        if (n > MAX_CAPACITY) {
+            throw new OutOfMemoryError("Hash table cannot hold " + n + " slots");
+        }
+        if (n <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit((int) n - 1) << 1;
+    }
+}
@@ -0,0 +1,90 @@
+package oy.tol.tra;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of indices of an array based dictionary.
+ * Splitting halves the range, so a parallel stream divides the array evenly
+ * between the threads. Empty indices (like the empty slots of a hash table) are skipped.
+ */
+abstract class IndexSpliterator<K extends Comparable<K>, V> implements Spliterator<Pair<K, V>> {
+    private static final int MIN_SPLIT_SIZE = 1024;
+
+    private int index;
+    private final int end;
+    private final int characteristics;
+
+    /**
+     * @param from First index.
+     * @param to Index after the last one.
+     * @param characteristics Characteristics of the spliterator, see {@link Spliterator#characteristics()}.
+     */
+    IndexSpliterator(int from, int to, int characteristics) {
+        this.index = from;
+        this.end = to;
+        this.characteristics = characteristics;
+    }
+
+    /**
+     * Returns the element in the index.
+     * @return The element, or null if there is no element in the index.
+     */
+    abstract Pair<K, V> pairAt(int index);
+
+    /**
+     * Creates a spliterator of the same dictionary over another range.
+     */
+    abstract IndexSpliterator<K, V> create(int from, int to);
+
+    /**
+     * Estimates the number of elements in a range of the given length.
+     * By default every index has an element.
+     */
+    long estimate(int length) {
+        return length;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Pair<K, V>> action) {
+        while (index < end) {
+            Pair<K, V> pair = pairAt(index++);
+            if (null != pair) {
+                action.accept(pair);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Pair<K, V>> action) {
+        for (; index < end; index++) {
+            Pair<K, V> pair = pairAt(index);
+            if (null != pair) {
+                action.accept(pair);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Pair<K, V>> trySplit() {
+        if (end - index < MIN_SPLIT_SIZE) {
+            return null;
+        }
+        int middle = (index + end) >>> 1;
+        Spliterator<Pair<K, V>> prefix = create(index, middle);
+        index = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate(end - index);
+    }
+
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+}
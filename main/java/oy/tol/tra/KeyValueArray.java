@@ -1,11 +1,19 @@
 package oy.tol.tra;
 
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+
 /**
  * A generic and slow Key-Value linear array.
  */
 public class KeyValueArray<K extends Comparable<K>, V> implements Dictionary<K,V> {
 
-   private Pair<K, V> [] pairs = null;
+   // Keys and values in parallel arrays, so no Pair is allocated per element.
+   // The elements are always packed to the beginning of the arrays.
+   private Object [] keys = null;
+   private Object [] values = null;
    private int count = 0;
    private int reallocationCount = 0;
 
@@ -22,13 +30,14 @@ public class KeyValueArray<K extends Comparable<K>, V> implements Dictionary<K,V
       return Type.SLOW;
    }
 
-   @SuppressWarnings("unchecked")
    @Override
    public void ensureCapacity(int size) throws OutOfMemoryError {
       if (size < 20) {
          size = 20;
       }
-      pairs = (Pair<K,V>[])new Pair[size];
+      keys = new Object[size];
+      values = new Object[size];
+      count = 0;
       reallocationCount = 0;
    }
 
@@ -40,71 +49,131 @@ public class KeyValueArray<K extends Comparable<K>, V> implements Dictionary<K,V
    @Override
    public String getStatus() {
       String toReturn = "KeyValueArray reallocated " + reallocationCount + " times, each time doubles the size\n";
-      toReturn += String.format("KeyValueArray fill rate is %.2f%%%n", (count / (double)pairs.length) * 100.0);
+      toReturn += String.format("KeyValueArray fill rate is %.2f%%%n", (count / (double)keys.length) * 100.0);
       return toReturn;
    }
 
    @Override
    public boolean add(K key, V value) throws IllegalArgumentException, OutOfMemoryError {
       if (null == key || value == null) throw new IllegalArgumentException("Not Key nor value can be null");
-      for (Pair<K, V> pair : pairs) {
-         // Must not have duplicate keys, so check if key is already in the array.
-         if (pair != null && pair.getKey().equals(key)) {
-            pair.setvalue(value);
-            return true;
-         }
+      // Must not have duplicate keys, so check if key is already in the array.
+      int index = indexOf(key);
+      if (index >= 0) {
+         values[index] = value;
+         return true;
       }
-      if (count >= pairs.length) {
-         reallocate(pairs.length * 2);
+      if (count >= keys.length) {
+         reallocate(Math.max(keys.length * 2, 20));
       }
-      if (count < pairs.length) {
-         pairs[count++] = new Pair<>(key, value);
+      if (count < keys.length) {
+         keys[count] = key;
+         values[count++] = value;
          return true;
       }
       return false;
    }
 
+   @SuppressWarnings("unchecked")
    @Override
    public V find(K key) throws IllegalArgumentException {
       if (null == key) throw new IllegalArgumentException("Key to find cannot be null");
+      int index = indexOf(key);
+      return index >= 0 ? (V) values[index] : null;
+   }
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public V remove(K key) throws IllegalArgumentException {
+      if (null == key) throw new IllegalArgumentException("Key to remove cannot be null");
+      int index = indexOf(key);
+      if (index < 0) {
+         return null;
+      }
+      V value = (V) values[index];
+      // Order does not matter, so move the last element to the hole.
+      count--;
+      keys[index] = keys[count];
+      values[index] = values[count];
+      keys[count] = null;
+      values[count] = null;
+      return value;
+   }
+
+   private int indexOf(K key) {
       for (int counter = 0; counter < count; counter++) {
-         if (pairs[counter] != null && key.equals(pairs[counter].getKey())) {
-            return pairs[counter].getValue();
+         if (key.equals(keys[counter])) {
+            return counter;
          }
       }
-      return null;
+      return -1;
    }
 
    @Override
    @java.lang.SuppressWarnings({"unchecked"})
    public Pair<K,V> [] toSortedArray() {
       Pair<K, V> [] sorted = (Pair<K,V>[])new Pair[count];
-      int newIndex = 0;
       for (int index = 0; index < count; index++) {
-         if (pairs[index] != null) {
-            sorted[newIndex++] = pairs[index];
-         }
+         sorted[index] = new Pair<>((K) keys[index], (V) values[index]);
       }
       Algorithms.fastSort(sorted);
       return sorted;
    }
 
+   @Override
+   public Iterator<Pair<K, V>> iterator() {
+      return Spliterators.iterator(spliterator());
+   }
+
+   /**
+    * Returns the elements in the order they are in the array.
+    */
+   @Override
+   public Spliterator<Pair<K, V>> spliterator() {
+      return new ArraySpliterator(0, count);
+   }
+
+   private class ArraySpliterator extends IndexSpliterator<K, V> {
+      ArraySpliterator(int from, int to) {
+         super(from, to, Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.SIZED | Spliterator.SUBSIZED);
+      }
+
+      @Override
+      @java.lang.SuppressWarnings({"unchecked"})
+      Pair<K, V> pairAt(int index) {
+         return new Pair<>((K) keys[index], (V) values[index]);
+      }
+
+      @Override
+      IndexSpliterator<K, V> create(int from, int to) {
+         return new ArraySpliterator(from, to);
+      }
+   }
+
+   @Override
+   @java.lang.SuppressWarnings({"unchecked"})
+   public void forEach(BiConsumer<? super K, ? super V> action) {
+      for (int index = 0; index < count; index++) {
+         action.accept((K) keys[index], (V) values[index]);
+      }
+   }
+
    @Override
    public void compress() throws OutOfMemoryError {
-      // First partition the null's to the end of the array.
-      int indexOfFirstNull = Algorithms.partitionByRule(pairs, count, element -> element == null);
-      // Then reallocate using the index from partitioning, pointing the first null in the array.
-      reallocate(indexOfFirstNull);
+      // The elements are packed to the beginning of the arrays, so there are no nulls to partition away.
+      reallocate(count);
    }
 
-   @java.lang.SuppressWarnings({"squid:S3012", "unchecked"})
+   @java.lang.SuppressWarnings({"squid:S3012"})
    private void reallocate(int newSize) throws OutOfMemoryError {
       reallocationCount++;
-      Pair<K, V> [] newPairs = (Pair<K,V>[])new Pair[newSize];
+      Object [] newKeys = new Object[newSize];
+      Object [] newValues = new Object[newSize];
       for (int index = 0; index < count; index++) {
-         newPairs[index] = pairs[index];
+         newKeys[index] = keys[index];
+         newValues[index] = values[index];
       }
-      pairs = newPairs;
+      keys = newKeys;
+      values = newValues;
    }
 
-}
+}
\ No newline at end of file
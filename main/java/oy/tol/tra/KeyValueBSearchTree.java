@@ -1,9 +1,62 @@
 package oy.tol.tra;
 
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * AVL tree dictionary.
+ *
+ * By default the nodes are ordered by the hash codes of the keys, which is fast to compare
+ * but has no meaning outside the tree. In key ordered mode the nodes are ordered with
+ * {@link Comparable#compareTo} of the keys instead, and the tree can answer range and
+ * prefix queries with {@link #range(Comparable, Comparable)} and {@link #prefix(Comparable, Predicate)}.
+ * In both modes the keys that compare equal but are not equal share a node.
+ */
 public class KeyValueBSearchTree<K extends Comparable<K>, V> implements Dictionary<K, V> {
 
+    private static final int PARALLEL_EXPORT_SIZE = 1 << 15; // Smaller trees are sorted sequentially.
+
     private Node<K, V> root = null;
     private int count = 0;
+    private Pair<K, V> removed = null; // The pair removed by the latest delete.
+    private final boolean keyOrdered;
+    private final Comparator<Node<K, V>> nodeOrder;
+    private final DictionaryCounters counters = new DictionaryCounters();
+    private BloomFilter filter; // Null when the membership filter is not used.
+
+    public KeyValueBSearchTree() {
+        this(false);
+    }
+
+    /**
+     * Creates the tree.
+     * @param keyOrdered If true, the nodes are ordered by the keys instead of their hash codes.
+     */
+    public KeyValueBSearchTree(boolean keyOrdered) {
+        this.keyOrdered = keyOrdered;
+        if (keyOrdered) {
+            nodeOrder = (a, b) -> a.getKey().compareTo(b.getKey());
+        } else {
+            nodeOrder = (a, b) -> Integer.compare(a.getHash(), b.getHash());
+        }
+    }
+
+    /**
+     * Compares the key to the key of the node in the order of the tree.
+     * @param key The key.
+     * @param keyHash Hash code of the key, used if the tree is ordered by hash.
+     * @param node The node to compare to.
+     * @return Negative if the key goes left of the node, positive if right, 0 if into the node.
+     */
+    private int compare(K key, int keyHash, Node<K, V> node) {
+        return keyOrdered ? key.compareTo(node.getKey()) : Integer.compare(keyHash, node.getHash());
+    }
 
     @Override
     public Type getType() {
@@ -15,9 +68,80 @@ public class KeyValueBSearchTree<K extends Comparable<K>, V> implements Dictiona
         return count;
     }
 
+    /**
+     * Reports the height of the tree and how many keys collide, that is, share a node.
+     */
     @Override
     public String getStatus() {
-        return String.format("Tree has max depth of: %d%n", getHeight(root));
+        DictionaryStats stats = getStats();
+        long[] chains = stats.getChainLengths();
+        long colliding = 0;
+        for (int length = 2; length < chains.length; length++) {
+            colliding += chains[length];
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Tree has max depth of: %d%n", stats.getHeight()));
+        sb.append(String.format("Tree has %d elements in %d nodes.%n", count, stats.getCapacity()));
+        sb.append(String.format("%d nodes have colliding keys, the most in one node is %d.%n", colliding,
+                Math.max(0, chains.length - 1)));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the counters of the operations of this tree, to enable, disable or reset them.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Returns the statistics of the tree. The height is kept in the root, the histograms
+     * of the node depths and the keys per node are collected with one walk of the tree.
+     */
+    @Override
+    public DictionaryStats getStats() {
+        DictionaryStats stats = new DictionaryStats(getType(), count);
+        stats.setCounters(counters);
+        stats.setHeight(height(root));
+        long[][] histograms = { new long[height(root)], new long[2] }; // Depths, keys per node.
+        long[] totals = new long[2]; // Nodes, pairs.
+        walkStats(root, 0, histograms, totals);
+        stats.setProbeLengths(histograms[0]);
+        int longest = histograms[1].length;
+        while (longest > 0 && histograms[1][longest - 1] == 0) {
+            longest--;
+        }
+        long[] chains = new long[longest];
+        System.arraycopy(histograms[1], 0, chains, 0, longest);
+        stats.setChainLengths(chains);
+        stats.setCapacity(totals[0]);
+        // A node is 40 bytes with its fields, a Pair 24 bytes, and each node has an array of its pairs.
+        long memory = totals[0] * (40 + DictionaryStats.arrayBytes(0, 4)) + totals[1] * (24 + 4);
+        BloomFilter bloom = filter;
+        if (null != bloom) {
+            stats.setFilter(bloom.expectedFalsePositiveRate(), bloom.memoryBytes());
+            memory += bloom.memoryBytes();
+        }
+        stats.setMemoryBytes(memory);
+        return stats;
+    }
+
+    private void walkStats(Node<K, V> node, int depth, long[][] histograms, long[] totals) {
+        if (null == node) {
+            return;
+        }
+        histograms[0][depth]++;
+        int pairs = node.pairCount();
+        if (pairs >= histograms[1].length) {
+            long[] bigger = new long[Math.max(pairs + 1, histograms[1].length * 2)];
+            System.arraycopy(histograms[1], 0, bigger, 0, histograms[1].length);
+            histograms[1] = bigger;
+        }
+        histograms[1][pairs]++;
+        totals[0]++;
+        totals[1] += pairs;
+        walkStats(node.getLeft(), depth + 1, histograms, totals);
+        walkStats(node.getRight(), depth + 1, histograms, totals);
     }
 
     @Override
@@ -27,8 +151,16 @@ public class KeyValueBSearchTree<K extends Comparable<K>, V> implements Dictiona
         }
 
         int keyHash = key.hashCode(); // This is used for comparing. Only needs to calculate once.
+        int before = count;
         count++;
         this.root = insert(key, value, root, keyHash);
+        counters.added(count > before);
+        if (null != filter && count > before) {
+            filter.add(keyHash);
+            if (filter.needsRebuild()) {
+                rebuildFilter();
+            }
+        }
         return true;
     }
 
@@ -37,18 +169,14 @@ public class KeyValueBSearchTree<K extends Comparable<K>, V> implements Dictiona
             return new Node<K, V>(key, value);
         }
         try {
-            if (keyHash < node.getHash()) {
+            int comparison = compare(key, keyHash, node);
+            if (comparison < 0) {
                 node.setLeft(insert(key, value, node.getLeft(), keyHash));
-            } else if (keyHash > node.getHash()) {
+            } else if (comparison > 0) {
                 node.setRight(insert(key, value, node.getRight(), keyHash));
             } else {
-                if(node.getKey().equals(key)){
-                    node.getPair().setvalue(value); //Same value
-                } else {
-                    Pair<K, V> p = new Pair<K, V>(key, value);
-                    if(!node.add(p)){ //Chaining.
-                        count--;
-                    }
+                if (!node.add(key, value)) { // The key was already in the node, its value was updated.
+                    count--;
                 }
                 return node;
             }
@@ -61,6 +189,216 @@ public class KeyValueBSearchTree<K extends Comparable<K>, V> implements Dictiona
         return rotation(node);
     }
 
+    /**
+     * Adds all the pairs with one sort instead of a rebalancing insert per pair.
+     * The new nodes are sorted in the order of the tree with a stable sort, so of the same
+     * keys the last one wins like with separate adds. If the pairs already are in that order,
+     * the sort is skipped. The sorted nodes are then merged with the nodes already in the tree,
+     * and a perfectly balanced tree is built of the result in O(n).
+     * A batch that is small compared to the tree is inserted one pair at a time instead,
+     * because rebuilding the whole tree for it would cost more.
+     *
+     * @param pairs The pairs to add.
+     * @throws IllegalArgumentException Throws if any pair, key or value is null.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void addAll(Pair<K, V>[] pairs) throws IllegalArgumentException, OutOfMemoryError {
+        if ((long) pairs.length * (32 - Integer.numberOfLeadingZeros(count)) < count) {
+            Dictionary.super.addAll(pairs);
+            return;
+        }
+        int before = count;
+        Node<K, V>[] added = new Node[pairs.length];
+        boolean sorted = true;
+        for (int i = 0; i < pairs.length; i++) {
+            Pair<K, V> p = pairs[i];
+            if (null == p || null == p.getKey() || null == p.getValue()) {
+                throw new IllegalArgumentException();
+            }
+            added[i] = new Node<>(p.getKey(), p.getValue());
+            if (i > 0 && nodeOrder.compare(added[i - 1], added[i]) > 0) {
+                sorted = false;
+            }
+        }
+        if (!sorted) {
+            Algorithms.mergeSort(added, nodeOrder);
+        }
+        Node<K, V>[] existing = inorderNodes();
+        Node<K, V>[] merged = new Node[existing.length + added.length];
+        int m = 0;
+        int e = 0;
+        for (Node<K, V> node : added) {
+            while (e < existing.length && nodeOrder.compare(existing[e], node) < 0) {
+                merged[m++] = existing[e++];
+            }
+            Node<K, V> target = null;
+            if (m > 0 && nodeOrder.compare(merged[m - 1], node) == 0) {
+                target = merged[m - 1];
+            } else if (e < existing.length && nodeOrder.compare(existing[e], node) == 0) {
+                target = existing[e++];
+                merged[m++] = target;
+            }
+            if (null == target) {
+                merged[m++] = node;
+                count++;
+                if (null != filter) {
+                    filter.add(node.getKey().hashCode());
+                }
+                continue;
+            }
+            // Same place as the previous node: update the same key or chain a colliding one.
+            if (target.add(node.getKey(), node.getValue())) {
+                count++;
+                if (null != filter) {
+                    filter.add(node.getKey().hashCode());
+                }
+            }
+        }
+        while (e < existing.length) {
+            merged[m++] = existing[e++];
+        }
+        root = build(merged, 0, m - 1);
+        counters.added(count - before, pairs.length - (count - before));
+        // Only the new keys were added to the filter, like in add().
+        if (null != filter && filter.needsRebuild()) {
+            rebuildFilter();
+        }
+    }
+
+    @Override
+    public void addAll(Iterable<Pair<K, V>> pairs) throws IllegalArgumentException, OutOfMemoryError {
+        addAll(Pair.toArray(pairs));
+    }
+
+    /**
+     * Collects the nodes of the tree in order without recursion.
+     * @return The nodes in the order of the tree.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V>[] inorderNodes() {
+        Node<K, V>[] nodes = new Node[count];
+        Node<K, V>[] stack = new Node[height(root)];
+        int depth = 0;
+        int n = 0;
+        Node<K, V> node = root;
+        while (null != node || depth > 0) {
+            while (null != node) {
+                stack[depth++] = node;
+                node = node.getLeft();
+            }
+            node = stack[--depth];
+            nodes[n++] = node;
+            node = node.getRight();
+        }
+        if (n == nodes.length) {
+            return nodes;
+        }
+        // Colliding keys share a node, so there may be less nodes than elements.
+        Node<K, V>[] result = new Node[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = nodes[i];
+        }
+        return result;
+    }
+
+    /**
+     * Builds a balanced tree of the sorted nodes, the middle node as the root.
+     * @param nodes The nodes in the order of the tree.
+     * @param low First index of the subtree.
+     * @param high Last index of the subtree.
+     * @return The root of the subtree.
+     */
+    private Node<K, V> build(Node<K, V>[] nodes, int low, int high) {
+        if (low > high) {
+            return null;
+        }
+        int middle = (low + high) >>> 1;
+        Node<K, V> node = nodes[middle];
+        node.setLeft(build(nodes, low, middle - 1));
+        node.setRight(build(nodes, middle + 1, high));
+        heightUpdate(node);
+        return node;
+    }
+
+    /**
+     * Removes the key from the tree. Removing a node rebalances the tree
+     * with the same AVL rotations as inserting.
+     *
+     * @param key The key to remove.
+     * @return The value of the removed key, or null if the key was not in the tree.
+     * @throws IllegalArgumentException Throws if the key is null.
+     */
+    @Override
+    public V remove(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        removed = null;
+        this.root = delete(key, root, key.hashCode());
+        if (null == removed) {
+            return null;
+        }
+        count--;
+        counters.removed();
+        if (null != filter) {
+            filter.removed();
+            if (filter.needsRebuild()) {
+                rebuildFilter();
+            }
+        }
+        V value = removed.getValue();
+        removed = null;
+        return value;
+    }
+
+    private Node<K, V> delete(K key, Node<K, V> node, int keyHash) {
+        if (null == node) {
+            return null;
+        }
+        int comparison = compare(key, keyHash, node);
+        if (comparison < 0) {
+            node.setLeft(delete(key, node.getLeft(), keyHash));
+        } else if (comparison > 0) {
+            node.setRight(delete(key, node.getRight(), keyHash));
+        } else {
+            removed = node.remove(key);
+            if (!node.isEmpty()) {
+                return node; // A colliding key was removed, or the key was not found.
+            }
+            if (null == node.getLeft()) {
+                return node.getRight();
+            }
+            if (null == node.getRight()) {
+                return node.getLeft();
+            }
+            // Two children: the smallest node of the right subtree takes the place of the node.
+            Node<K, V> successor = node.getRight();
+            while (null != successor.getLeft()) {
+                successor = successor.getLeft();
+            }
+            successor.setRight(deleteMin(node.getRight()));
+            successor.setLeft(node.getLeft());
+            node = successor;
+        }
+        heightUpdate(node);
+        return rotation(node);
+    }
+
+    /**
+     * Unlinks the smallest node of the subtree.
+     * @param node Root of the subtree.
+     * @return The new root of the subtree.
+     */
+    private Node<K, V> deleteMin(Node<K, V> node) {
+        if (null == node.getLeft()) {
+            return node.getRight();
+        }
+        node.setLeft(deleteMin(node.getLeft()));
+        heightUpdate(node);
+        return rotation(node);
+    }
+
     /**
      * Updates the height value of the node
      * @param node Node whos height to update.
@@ -156,21 +494,56 @@ public V find(K key) throws IllegalArgumentException {
         throw new IllegalArgumentException();
     }
     int hashKey = key.hashCode();
+    if (null != filter && !filter.mightContain(hashKey)) {
+        counters.filtered(true);
+        counters.lookup(false);
+        return null;
+    }
     Node<K, V> current = root;
     while (current != null) {
-        if (hashKey == current.getHash()) {
+        int comparison = compare(key, hashKey, current);
+        if (comparison == 0) {
             Pair<K,V> pair = current.find(key);
-            return pair != null ? pair.getValue() : null;
+            if (pair != null) {
+                counters.lookup(true);
+                return pair.getValue();
+            }
+            break;
         }
-        if (hashKey < current.getHash()) {
+        if (comparison < 0) {
             current = current.getLeft();
         } else {
             current = current.getRight();
         }
     }
+    if (null != filter) {
+        counters.filtered(false);
+    }
+    counters.lookup(false);
     return null;
 }
 
+    /**
+     * Enables or disables the membership filter. The filter is a {@link BloomFilter} of the
+     * hash codes of the keys, checked by {@link #find(Comparable)} before walking down the
+     * tree, so most finds of missing keys return at once. It is sized for twice the current
+     * number of elements and rebuilt when the tree outgrows it, or after many removes.
+     * @param enabled If true, the filter is built of the current keys, if false, it is dropped.
+     */
+    public void setMembershipFilter(boolean enabled) {
+        filter = enabled ? new BloomFilter(0) : null;
+        rebuildFilter();
+    }
+
+    private void rebuildFilter() {
+        if (null == filter) {
+            return;
+        }
+        BloomFilter rebuilt = new BloomFilter(Math.max(1024, 2 * count));
+        forEach((key, value) -> rebuilt.add(key.hashCode()));
+        filter = rebuilt;
+    }
+
     /**
      * Finds the value with given key
      * @param key key to the value
@@ -182,16 +555,7 @@ public V find(K key) throws IllegalArgumentException {
             return null;
         }
         if(hash == node.getHash()){
-            if(node.getKey().equals(k)){
-                return node.getPair();
-            } else {
-                if(node.hasNext()){
-                    Pair<K, V> p = node.find(k);
-                    return (null != p) ? p : null;
-                } else {
-                    return null;
-                }
-            }
+            return node.find(k);
         }
         if (hash < node.getHash()) {
             return recursiveFind(hash, node.getLeft(), k);
@@ -204,32 +568,281 @@ public V find(K key) throws IllegalArgumentException {
         return;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Returns the elements from {@code from} (inclusive) to {@code to} (exclusive) in key order.
+     * The elements are found lazily while iterating: only the nodes on the path to {@code from}
+     * and the nodes in the range are visited, and no array of the results is created.
+     * The tree must not be changed while iterating.
+     *
+     * @param from The smallest key to return, or null to start from the smallest key of the tree.
+     * @param to The first key not to return, or null to continue to the end of the tree.
+     * @return Iterator over the pairs in the range.
+     * @throws IllegalStateException If the tree is not key ordered.
+     */
+    public Iterator<Pair<K, V>> range(K from, K to) {
+        requireKeyOrder();
+        return new RangeIterator(from, null == to ? null : key -> key.compareTo(to) < 0);
+    }
+
+    /**
+     * Returns the elements starting from {@code from}, in key order, as long as the keys match.
+     * For example, with {@link Person} keys that are ordered by last name, the persons whose
+     * last name starts with "Kor" are
+     * <pre>
+     * tree.prefix(new Person("", "Kor"), person -&gt; person.getLastName().startsWith("Kor"))
+     * </pre>
+     * Like {@link #range(Comparable, Comparable)}, the elements are found lazily.
+     *
+     * @param from The smallest key that can match.
+     * @param matches Tells if a key matches. The keys following {@code from} that match must be
+     *        consecutive in key order; the iteration ends at the first key not matching.
+     * @return Iterator over the matching pairs.
+     * @throws IllegalStateException If the tree is not key ordered.
+     */
+    public Iterator<Pair<K, V>> prefix(K from, Predicate<K> matches) {
+        if (null == from || null == matches) {
+            throw new IllegalArgumentException();
+        }
+        requireKeyOrder();
+        return new RangeIterator(from, matches);
+    }
+
+    private void requireKeyOrder() {
+        if (!keyOrdered) {
+            throw new IllegalStateException("Range queries need a key ordered tree");
+        }
+    }
+
+    /**
+     * Returns the elements in the order of the tree: by key in key ordered mode,
+     * otherwise by hash. The tree is walked with an explicit stack, nothing is copied.
+     */
     @Override
-    public Pair<K, V>[] toSortedArray() {
-        Pair<K, V>[] arr = (Pair<K, V>[]) new Pair[count];
-        if (null == root) {
-            return null;
+    public Iterator<Pair<K, V>> iterator() {
+        return new RangeIterator(null, root);
+    }
+
+    /**
+     * Returns a spliterator that splits the tree by subtrees, see {@link TreeSpliterator}.
+     */
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        return new TreeSpliterator(null, root, count);
+    }
+
+    /**
+     * Calls the action for each key and value in the order of the tree.
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Pair<K, V> pair : this) {
+            action.accept(pair.getKey(), pair.getValue());
+        }
+    }
+
+    /**
+     * Spliterator over one node followed by a subtree, in the order of the tree.
+     * Splitting gives away the node and the left subtree of the subtree, and keeps the
+     * root of the subtree and its right subtree. The tree is balanced, so the parts are
+     * about the same size, and the order of the elements is kept.
+     */
+    private class TreeSpliterator implements Spliterator<Pair<K, V>> {
+        private Node<K, V> head; // Node before the subtree, or null.
+        private Node<K, V> subtree;
+        private long estimate;
+        private Iterator<Pair<K, V>> iterator = null; // Created when the traversal starts.
+
+        TreeSpliterator(Node<K, V> head, Node<K, V> subtree, long estimate) {
+            this.head = head;
+            this.subtree = subtree;
+            this.estimate = estimate;
+        }
+
+        private Iterator<Pair<K, V>> iterator() {
+            if (null == iterator) {
+                iterator = new RangeIterator(head, subtree);
+            }
+            return iterator;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Pair<K, V>> action) {
+            Iterator<Pair<K, V>> it = iterator();
+            if (it.hasNext()) {
+                action.accept(it.next());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Pair<K, V>> action) {
+            iterator().forEachRemaining(action);
+        }
+
+        @Override
+        public Spliterator<Pair<K, V>> trySplit() {
+            if (null != iterator || null == subtree || (null == head && null == subtree.getLeft())) {
+                return null;
+            }
+            estimate /= 2;
+            Spliterator<Pair<K, V>> prefix = new TreeSpliterator(head, subtree.getLeft(), estimate);
+            head = subtree;
+            subtree = subtree.getRight();
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT;
+        }
+    }
+
+    /**
+     * In-order walk of the tree with an explicit stack, from a lower bound while the keys match,
+     * or over a node and a subtree following it.
+     */
+    private class RangeIterator implements Iterator<Pair<K, V>> {
+        private final Predicate<K> matches;
+        private final Node<K, V>[] stack;
+        private int depth = 0;
+        private Node<K, V> node = null; // Node whose pairs are being returned.
+        private int pairIndex = 0; // Next pair of the node to return.
+        private Pair<K, V> next;
+
+        @SuppressWarnings("unchecked")
+        RangeIterator(Node<K, V> head, Node<K, V> subtree) {
+            this.matches = null;
+            this.stack = new Node[height(subtree) + 1];
+            for (Node<K, V> current = subtree; null != current; current = current.getLeft()) {
+                stack[depth++] = current;
+            }
+            node = head;
+            next = advance();
         }
-        Action<K, V> action = new Action<K, V>() {
-            int i = 0;
 
-            @Override
-            public void action(Node<K, V> node) {
-                if(!node.hasNext()){
-                    arr[i++] = node.getPair();
+        @SuppressWarnings("unchecked")
+        RangeIterator(K from, Predicate<K> matches) {
+            this.matches = matches;
+            this.stack = new Node[height(root) + 1];
+            // Stack the nodes not smaller than from on the path, they are visited in this order.
+            Node<K, V> current = root;
+            while (null != current) {
+                if (null == from || from.compareTo(current.getKey()) <= 0) {
+                    stack[depth++] = current;
+                    current = current.getLeft();
                 } else {
-                    arr[i++] = node.getPair();
-                    for(int i = 0; i < node.chainLength(); i++){
-                        arr[i++] = node.chainGetIndex(i);
+                    current = current.getRight();
+                }
+            }
+            next = advance();
+        }
+
+        private Pair<K, V> advance() {
+            while (true) {
+                if (null != node) {
+                    if (pairIndex < node.pairCount()) {
+                        return node.getPair(pairIndex++);
                     }
+                    node = null;
+                }
+                if (depth == 0) {
+                    return null;
                 }
+                Node<K, V> candidate = stack[--depth];
+                if (null != matches && !matches.test(candidate.getKey())) {
+                    depth = 0;
+                    return null;
+                }
+                for (Node<K, V> child = candidate.getRight(); null != child; child = child.getLeft()) {
+                    stack[depth++] = child;
+                }
+                node = candidate;
+                pairIndex = 0;
             }
-        };
-        TreeVisitor<K, V> visitor = new VisitInorder(action);
-        visitor.visit(root);
-        Algorithms.fastSort(arr, 0, arr.length - 1);
-        return arr;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != next;
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            if (null == next) {
+                throw new NoSuchElementException();
+            }
+            Pair<K, V> result = next;
+            next = advance();
+            return result;
+        }
+    }
+
+    /**
+     * Returns the elements sorted by key.
+     *
+     * In key ordered mode the in-order walk already is the sorted order. In hash order large
+     * trees are exported in parallel: the subtrees below the first levels are collected and
+     * sorted by their own workers, the nodes of the first levels form one more run, and the
+     * runs are merged with {@link Algorithms#parallelMerge(Comparable[][], Comparable[])}.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        if (keyOrdered) {
+            return Pair.toArray(this);
+        }
+        int levels = 32 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism() * 4 - 1);
+        if (count < PARALLEL_EXPORT_SIZE || height(root) <= levels) {
+            Pair<K, V>[] arr = Pair.toArray(this);
+            Algorithms.fastSort(arr);
+            return arr;
+        }
+        Node<K, V>[] subtrees = new Node[1 << levels];
+        Node<K, V>[] upper = new Node[(1 << levels) - 1];
+        int[] found = new int[2];
+        split(root, levels, subtrees, upper, found);
+        int subtreeCount = found[0];
+        int upperCount = found[1];
+        return Algorithms.sortRunsAndMerge(subtreeCount + 1, run -> {
+            if (run < subtreeCount) {
+                return Pair.toArray(() -> new RangeIterator(null, subtrees[run]));
+            }
+            int length = 0;
+            for (int i = 0; i < upperCount; i++) {
+                length += upper[i].pairCount();
+            }
+            Pair<K, V>[] pairs = new Pair[length];
+            int next = 0;
+            for (int i = 0; i < upperCount; i++) {
+                for (Iterator<Pair<K, V>> own = new RangeIterator(upper[i], null); own.hasNext();) {
+                    pairs[next++] = own.next();
+                }
+            }
+            return pairs;
+        }, Pair[]::new);
+    }
+
+    /**
+     * Divides the tree into the subtrees starting at the given depth and the nodes above them.
+     * found[0] counts the subtrees and found[1] the nodes above.
+     */
+    private void split(Node<K, V> node, int depth, Node<K, V>[] subtrees, Node<K, V>[] upper, int[] found) {
+        if (null == node) {
+            return;
+        }
+        if (0 == depth) {
+            subtrees[found[0]++] = node;
+            return;
+        }
+        upper[found[1]++] = node;
+        split(node.getLeft(), depth - 1, subtrees, upper, found);
+        split(node.getRight(), depth - 1, subtrees, upper, found);
     }
 
     @Override
@@ -1,26 +1,109 @@
 package oy.tol.tra;
 
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
 public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary<K, V> {
     private static final int DEFAULT_SIZE = 1024;
     private static final float loadFactor = 0.60f;
-    private static float growRate = 2;
-    private int table_size;
+    private static final float COMPRESSED_LOAD = 0.90f; // Target load of compress().
+    private static final float MAX_LOAD = 0.95f; // Highest target load of compress(float).
+    private static final int MIGRATION_STEP = 16; // Old slots moved per operation in incremental rehash.
+    private static final int PARALLEL_BULK_SIZE = 1 << 15; // Smaller bulk loads are added sequentially.
+    private static final int MIN_REGION_SIZE = 1 << 12; // Smallest table region filled by one task.
+    private static final int RESEED_DISPLACEMENT = 128; // Larger maxDP means the keys collide on purpose.
+    private static final SecureRandom SEEDS = new SecureRandom();
+    private int table_size; // Always a power of two.
+    private int mask; // table_size - 1, used instead of modulo to wrap the indices.
 
-    private Pair<K, V>[] table; // The hash table.
+    // The hash table is kept as parallel arrays instead of an array of Pairs, so no
+    // object is allocated per element. An index is empty when its key is null.
+    private Object[] keys;
+    private Object[] values;
+    private int[] hashes; // Mixed hash of the key in the same index of the table.
     private int maxDP; // The largest displacement of any element.
+    private int[] dpCounts; // Number of elements with each displacement, keeps maxDP exact on removal.
     private int size; // The size of the table.
+    private float growLoad = loadFactor; // The table grows at this load, compress(float) raises it.
     private int collissions;
     private int rehashCount;
     private int probeCount;
+    private HashStrategy<? super K> strategy;
+    private int reseedDisplacement = RESEED_DISPLACEMENT;
+    private int reseedCount;
+    private final DictionaryCounters counters;
+    private BloomFilter filter; // Null when the membership filter is not used.
+
+    // Incremental rehash: while growing, the previous arrays are kept until all their
+    // elements have been moved to the new ones, MIGRATION_STEP slots per operation.
+    // The old arrays are not reorganized meanwhile, an element moved or removed from
+    // them only gets its value nulled, so the probe sequences in them stay valid.
+    private final boolean incremental;
+    private Object[] oldKeys;
+    private Object[] oldValues;
+    private int[] oldHashes;
+    private int oldMask;
+    private int migrated; // Index of the next old slot to move.
 
     public KeyValueHashTable() {
-        ensureCapacity(DEFAULT_SIZE);
+        this(DEFAULT_SIZE, false);
     }
 
     public KeyValueHashTable(int size) {
+        this(size, false);
+    }
+
+    /**
+     * Creates the table.
+     * @param size Number of elements the table must hold without growing.
+     * @param incrementalRehash If true, the table grows incrementally: instead of moving all
+     *        the elements to the new array in the add that crosses the load factor, each
+     *        following add, find and remove moves a few of them. This removes the latency
+     *        spike of growing a large table, with the cost of searching the old array too
+     *        until all elements have been moved. Note that then find also changes the table.
+     */
+    public KeyValueHashTable(int size, boolean incrementalRehash) {
+        this(size, incrementalRehash, HashStrategy.standard());
+    }
+
+    /**
+     * Creates the table with the given hash strategy.
+     * Whatever the strategy, when an element ends up further than {@value #RESEED_DISPLACEMENT}
+     * slots from its home index, the keys are assumed to collide on purpose: the strategy is
+     * replaced with {@link HashStrategy#reseed(long)} of a random seed and all the keys are
+     * rehashed. With the standard strategy this switches strings and persons to SipHash.
+     * @param size Number of elements the table must hold without growing.
+     * @param incrementalRehash See {@link #KeyValueHashTable(int, boolean)}.
+     * @param strategy Hashes the keys.
+     */
+    public KeyValueHashTable(int size, boolean incrementalRehash, HashStrategy<? super K> strategy) {
+        this(size, incrementalRehash, strategy, new DictionaryCounters());
+    }
+
+    /**
+     * Creates a table counting its operations into the given counters, shared by the
+     * segments of a {@link ConcurrentKeyValueHashTable}.
+     */
+    KeyValueHashTable(int size, DictionaryCounters counters) {
+        this(size, false, HashStrategy.standard(), counters);
+    }
+
+    private KeyValueHashTable(int size, boolean incrementalRehash, HashStrategy<? super K> strategy,
+            DictionaryCounters counters) {
+        this.counters = counters;
         if (size < DEFAULT_SIZE) {
             size = DEFAULT_SIZE;
         }
+        if (null == strategy) {
+            throw new IllegalArgumentException();
+        }
+        this.incremental = incrementalRehash;
+        this.strategy = strategy;
         ensureCapacity(size);
     }
 
@@ -30,6 +113,9 @@ public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary
     * while inserted gets a distance score 'd'. When moving items, it prioritizes
     * the values with lower distance-scores. Doing so, we hopefully even out the buckets
     * of elements.
+    * The hash of the key is calculated once, and the hashes of the elements already in the
+    * table are read from {@code hashes}, so the keys passed by are not rehashed nor compared
+    * unless their hash matches.
     *
     * @param k The key value to use in adding elements. Must not be null and must implement hashCode.
     * @param v The associated value for the key. Must not be null;
@@ -41,49 +127,546 @@ public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary
         if (null == k || null == v) {
             throw new IllegalArgumentException();
         }
+        counters.added(put(k, v));
+        return true;
+    }
 
-        if (load() >= loadFactor) {
+    /**
+     * Adds or updates the key, see {@link #add(Comparable, Object)}.
+     * @return True if the key was new, false if its value was updated.
+     */
+    private boolean put(K k, V v) {
+        if (null != oldKeys) {
+            migrate(MIGRATION_STEP);
+        }
+        if (load() >= growLoad) {
             rehash();
         }
-        int probeTemp = 0;
-        int index = hash(k);
+        int h = hash(k);
+        int index = h & mask;
         int d = 0;
+        while (keys[index] != null && displacement(index) >= d) {
+            // Same key.
+            if (hashes[index] == h && k.equals(keys[index])) {
+                values[index] = v;
+                return false;
+            }
+            index = (index + 1) & mask;
+            d++;
+        }
+        // Robin Hood: the key cannot be further on than an element closer to its home,
+        // so it is new and goes here.
+        boolean inserted = true;
+        if (null != oldKeys) {
+            int old = findOld(k, h);
+            if (old >= 0) {
+                // Not new after all, but still in the old array. Move it over here.
+                oldValues[old] = null;
+                size--;
+                inserted = false;
+            }
+        }
+        collissions += d;
+        insert(k, v, h, index, d);
+        size++;
+        if (null != filter) {
+            filter.add(h);
+            if (filter.needsRebuild()) {
+                rebuildFilter();
+            }
+        }
+        if (maxDP > reseedDisplacement) {
+            reseed();
+        }
+        return inserted;
+    }
 
-        Pair<K, V> p = new Pair<K, V>(k, v);
-        while (true) {
-            if (table[index] == null) {
-                table[index] = p;
-                size++;
-                if (probeTemp > probeCount) {
-                    probeCount = probeTemp;
+    /**
+     * Adds all the pairs, sizing the table once for all of them.
+     * Large bulk loads are filled in parallel: the table is split into regions, the pairs
+     * are hashed and grouped by the region of their home index, and each region is filled
+     * by its own fork/join task. A task never probes past the end of its region; a pair that
+     * would have to (or an element it would push out) is put aside and added sequentially
+     * after the parallel part. Pairs are handled in array order within a region, so of the
+     * same keys the last one wins like with separate adds.
+     *
+     * @param pairs The pairs to add.
+     * @throws IllegalArgumentException Throws if any pair, key or value is null.
+     */
+    @Override
+    public void addAll(Pair<K, V>[] pairs) throws IllegalArgumentException, OutOfMemoryError {
+        for (Pair<K, V> p : pairs) {
+            if (null == p || null == p.getKey() || null == p.getValue()) {
+                throw new IllegalArgumentException();
+            }
+        }
+        completeMigration();
+        int capacity = Hashing.tableSizeFor((long) Math.ceil((size + (long) pairs.length) / growLoad));
+        if (capacity > table_size) {
+            rehashCount++;
+            resize(capacity);
+        }
+        int regions = Math.min(table_size / MIN_REGION_SIZE,
+                Integer.highestOneBit(ForkJoinPool.getCommonPoolParallelism() * 8));
+        if (pairs.length < PARALLEL_BULK_SIZE || regions < 2) {
+            for (Pair<K, V> p : pairs) {
+                add(p.getKey(), p.getValue());
+            }
+            return;
+        }
+        int before = size;
+        BulkLoad load = new BulkLoad(pairs, regions);
+        load.run();
+        if (null != filter) {
+            for (int h : load.pairHashes) {
+                filter.add(h);
+            }
+            if (filter.needsRebuild()) {
+                rebuildFilter();
+            }
+        }
+        counters.added(size - before, pairs.length - (size - before));
+        if (maxDP > reseedDisplacement) {
+            reseed();
+        }
+    }
+
+    @Override
+    public void addAll(Iterable<Pair<K, V>> pairs) throws IllegalArgumentException, OutOfMemoryError {
+        addAll(Pair.toArray(pairs));
+    }
+
+    /**
+     * A parallel fill of the table, see {@link #addAll(Pair[])}.
+     */
+    private class BulkLoad {
+        private final Pair<K, V>[] pairs;
+        private final int[] pairHashes;
+        private final int[] order; // Indices of the pairs grouped by region, in array order within a region.
+        private final int[] regionStart; // Where the pairs of each region start in order.
+        private final int regionShift;
+        private final Region[] regions;
+
+        @SuppressWarnings("unchecked")
+        BulkLoad(Pair<K, V>[] pairs, int regionCount) {
+            this.pairs = pairs;
+            this.pairHashes = new int[pairs.length];
+            this.order = new int[pairs.length];
+            this.regionStart = new int[regionCount + 1];
+            this.regionShift = Integer.numberOfTrailingZeros(table_size / regionCount);
+            this.regions = new KeyValueHashTable.Region[regionCount];
+        }
+
+        void run() {
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            pool.invoke(new HashTask(0, pairs.length));
+            // Counting sort of the pair indices by region.
+            for (int h : pairHashes) {
+                regionStart[((h & mask) >>> regionShift) + 1]++;
+            }
+            for (int r = 0; r < regions.length; r++) {
+                regionStart[r + 1] += regionStart[r];
+            }
+            int[] next = new int[regions.length];
+            for (int r = 0; r < regions.length; r++) {
+                next[r] = regionStart[r];
+            }
+            for (int i = 0; i < pairs.length; i++) {
+                order[next[(pairHashes[i] & mask) >>> regionShift]++] = i;
+            }
+            pool.invoke(new RegionTask(0, regions.length));
+            // The tasks did not touch the shared statistics, count them now.
+            maxDP = 0;
+            dpCounts = new int[16];
+            for (int index = 0; index < table_size; index++) {
+                if (null != keys[index]) {
+                    countDP(displacement(index));
                 }
-                return true;
+            }
+            for (Region region : regions) {
+                size += region.added;
+                collissions += region.collissions;
+                probeCount = Math.max(probeCount, region.probeCount);
+            }
+            // Pushed out elements first: one of them can be an older value of a key whose
+            // newer pair was put aside by the region of its home index.
+            for (Region region : regions) {
+                region.addSpilled(true);
+            }
+            for (Region region : regions) {
+                region.addSpilled(false);
+            }
+        }
 
-                //Same key
-            } else if(table[index].getKey().equals(k)){
-                table[index].setvalue(v);
-                return true;
+        private class HashTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final int from;
+            private final int to;
+
+            HashTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
 
-                // Try another hash if our distance is lower than with the one
-                // that is currently inserted into the table[index].
-            } else if (displacement(table[index].getKey(), index) >= d) {
+            @Override
+            protected void compute() {
+                if (to - from <= PARALLEL_BULK_SIZE / 4) {
+                    for (int i = from; i < to; i++) {
+                        pairHashes[i] = hash(pairs[i].getKey());
+                    }
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(from, middle), new HashTask(middle, to));
+            }
+        }
+
+        private class RegionTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final int from;
+            private final int to;
+
+            RegionTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    Region region = new Region((from + 1) << regionShift);
+                    for (int i = regionStart[from]; i < regionStart[from + 1]; i++) {
+                        Pair<K, V> p = pairs[order[i]];
+                        region.put(p.getKey(), p.getValue(), pairHashes[order[i]]);
+                    }
+                    regions[from] = region;
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new RegionTask(from, middle), new RegionTask(middle, to));
+            }
+        }
+    }
+
+    /**
+     * One region of a parallel fill. Changes only the slots of the region and
+     * keeps its own statistics.
+     */
+    private class Region {
+        private final int end; // First index after the region.
+        private int added;
+        private int collissions;
+        private int probeCount;
+        private Object[] spillKeys = new Object[8];
+        private Object[] spillValues = new Object[8];
+        private int[] spillHashes = new int[8];
+        private boolean[] spillPushed = new boolean[8]; // True for an element pushed out, false for a new pair.
+        private int spillCount;
+
+        Region(int end) {
+            this.end = end;
+        }
+
+        void put(Object key, Object value, int h) {
+            // A later pair of a put aside key must be put aside too, to keep their order.
+            for (int i = 0; i < spillCount; i++) {
+                if (spillHashes[i] == h && key.equals(spillKeys[i])) {
+                    spill(key, value, h, false);
+                    return;
+                }
+            }
+            int index = h & mask;
+            int d = 0;
+            while (keys[index] != null && displacement(index) >= d) {
+                if (hashes[index] == h && key.equals(keys[index])) {
+                    values[index] = value;
+                    return;
+                }
+                index++;
                 d++;
-                index = (index + 1) % table_size;
-                maxDP = Math.max(d, maxDP);
-            } else {
+                if (index == end) {
+                    spill(key, value, h, false);
+                    return;
+                }
+            }
+            added++;
+            collissions += d;
+            int probeTemp = d;
+            boolean pushed = false;
+            while (keys[index] != null) {
+                int resident = displacement(index);
+                if (resident < d) {
+                    Object tempKey = keys[index];
+                    Object tempValue = values[index];
+                    int tempHash = hashes[index];
+                    keys[index] = key;
+                    values[index] = value;
+                    hashes[index] = h;
+                    key = tempKey;
+                    value = tempValue;
+                    h = tempHash;
+                    d = resident;
+                    pushed = true;
+                }
+                index++;
+                d++;
+                collissions++;
+                probeTemp++;
+                if (index == end) {
+                    // The element being moved on is added after the parallel part.
+                    added--;
+                    spill(key, value, h, pushed);
+                    return;
+                }
+            }
+            keys[index] = key;
+            values[index] = value;
+            hashes[index] = h;
+            if (probeTemp > probeCount) {
+                probeCount = probeTemp;
+            }
+        }
+
+        private void spill(Object key, Object value, int h, boolean pushed) {
+            if (spillCount == spillKeys.length) {
+                Object[] moreKeys = new Object[spillCount * 2];
+                Object[] moreValues = new Object[spillCount * 2];
+                int[] moreHashes = new int[spillCount * 2];
+                boolean[] morePushed = new boolean[spillCount * 2];
+                for (int i = 0; i < spillCount; i++) {
+                    moreKeys[i] = spillKeys[i];
+                    moreValues[i] = spillValues[i];
+                    moreHashes[i] = spillHashes[i];
+                    morePushed[i] = spillPushed[i];
+                }
+                spillKeys = moreKeys;
+                spillValues = moreValues;
+                spillHashes = moreHashes;
+                spillPushed = morePushed;
+            }
+            spillKeys[spillCount] = key;
+            spillValues[spillCount] = value;
+            spillHashes[spillCount] = h;
+            spillPushed[spillCount] = pushed;
+            spillCount++;
+        }
+
+        /**
+         * Adds either the pushed out elements or the new pairs put aside, in their order.
+         */
+        @SuppressWarnings("unchecked")
+        void addSpilled(boolean pushed) {
+            for (int i = 0; i < spillCount; i++) {
+                if (spillPushed[i] == pushed) {
+                    KeyValueHashTable.this.put((K) spillKeys[i], (V) spillValues[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Places a key that is not yet in the table, starting from the given
+     * index, moving on the elements with lower distance-score.
+     * @param key The key to insert.
+     * @param value The value of the key.
+     * @param h The mixed hash of the key.
+     * @param index Index where to start, the home index of the key or later in its probe sequence.
+     * @param d The distance of index from the home index of the key.
+     */
+    private void insert(Object key, Object value, int h, int index, int d) {
+        int probeTemp = d;
+        while (true) {
+            if (keys[index] == null) {
+                keys[index] = key;
+                values[index] = value;
+                hashes[index] = h;
+                countDP(d);
+                if (probeTemp > probeCount) {
+                    probeCount = probeTemp;
+                }
+                return;
+            }
+            int resident = displacement(index);
+            if (resident < d) {
                 // Start moving another element with lower distance-score.
-                Pair<K, V> temp = p;
-                p = table[index];
-                table[index] = temp;
-                index = (index + 1) % table_size;
-                d = displacement(k, index);
-                maxDP = Math.max(d, maxDP);
+                Object tempKey = keys[index];
+                Object tempValue = values[index];
+                int tempHash = hashes[index];
+                keys[index] = key;
+                values[index] = value;
+                hashes[index] = h;
+                dpCounts[resident]--;
+                countDP(d);
+                key = tempKey;
+                value = tempValue;
+                h = tempHash;
+                d = resident;
             }
+            index = (index + 1) & mask;
+            d++;
             collissions++;
             probeTemp++;
         }
     }
 
+    /**
+     * Removes the key from the table with backward shift deletion.
+     * The elements following the removed one are shifted one step back towards
+     * their home index until an empty slot or an element already in its home index
+     * is met. No tombstones are left behind, so later lookups do not slow down,
+     * and maxDP is lowered when the last element with the largest displacement goes.
+     *
+     * @param key The key to remove.
+     * @return The value of the removed key, or null if the key was not in the table.
+     * @throws IllegalArgumentException Throws if the key is null.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        if (null != oldKeys) {
+            migrate(MIGRATION_STEP);
+        }
+        int h = hash(key);
+        int index = indexOf(key, h);
+        if (index >= 0) {
+            V value = (V) values[index];
+            shiftBack(index);
+            size--;
+            removedFromFilter();
+            counters.removed();
+            return value;
+        }
+        if (null != oldKeys) {
+            int old = findOld(key, h);
+            if (old >= 0) {
+                V value = (V) oldValues[old];
+                oldValues[old] = null;
+                size--;
+                removedFromFilter();
+                counters.removed();
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the index of the key. Because of the Robin Hood ordering, the search
+     * can stop at an empty slot or at an element closer to its home than the
+     * searched key would be.
+     * @param key The key to search.
+     * @param h The mixed hash of the key.
+     * @return The index of the key, or -1 if not found.
+     */
+    private int indexOf(Object key, int h) {
+        int index = h & mask;
+        for (int d = 0; d <= maxDP; d++) {
+            if (null == keys[index] || displacement(index) < d) {
+                return -1;
+            }
+            if (hashes[index] == h && key.equals(keys[index])) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of the key in the old array of an incremental rehash.
+     * @return The index of the key, or -1 if not found or already moved or removed.
+     */
+    private int findOld(Object key, int h) {
+        int index = h & oldMask;
+        for (int d = 0; d <= oldMask; d++) {
+            if (null == oldKeys[index] || ((index - (oldHashes[index] & oldMask)) & oldMask) < d) {
+                return -1;
+            }
+            if (oldHashes[index] == h && key.equals(oldKeys[index])) {
+                return null != oldValues[index] ? index : -1;
+            }
+            index = (index + 1) & oldMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves elements of the given number of old slots to the current arrays.
+     * Frees the old arrays when all the elements have been moved.
+     */
+    private void migrate(int slots) {
+        int end = Math.min(migrated + slots, oldKeys.length);
+        for (; migrated < end; migrated++) {
+            if (null != oldValues[migrated]) {
+                int h = oldHashes[migrated];
+                insert(oldKeys[migrated], oldValues[migrated], h, h & mask, 0);
+                oldValues[migrated] = null;
+            }
+        }
+        if (migrated == oldKeys.length) {
+            oldKeys = null;
+            oldValues = null;
+            oldHashes = null;
+        }
+    }
+
+    /**
+     * Finishes an incremental rehash, if one is going on.
+     */
+    private void completeMigration() {
+        if (null != oldKeys) {
+            migrate(oldKeys.length);
+        }
+    }
+
+    /**
+     * Empties the slot in the given index by shifting the following displaced elements back.
+     * @param index Index of the element to remove.
+     */
+    private void shiftBack(int index) {
+        dpCounts[displacement(index)]--;
+        int next = (index + 1) & mask;
+        while (keys[next] != null) {
+            int d = displacement(next);
+            if (d == 0) {
+                break;
+            }
+            keys[index] = keys[next];
+            values[index] = values[next];
+            hashes[index] = hashes[next];
+            dpCounts[d]--;
+            dpCounts[d - 1]++;
+            index = next;
+            next = (next + 1) & mask;
+        }
+        keys[index] = null;
+        values[index] = null;
+        hashes[index] = 0;
+        while (maxDP > 0 && dpCounts[maxDP] == 0) {
+            maxDP--;
+        }
+    }
+
+    /**
+     * Counts a new element placed with the displacement d.
+     */
+    private void countDP(int d) {
+        if (d >= dpCounts.length) {
+            int[] counts = new int[Math.max(d + 1, dpCounts.length * 2)];
+            for (int i = 0; i < dpCounts.length; i++) {
+                counts[i] = dpCounts[i];
+            }
+            dpCounts = counts;
+        }
+        dpCounts[d]++;
+        if (d > maxDP) {
+            maxDP = d;
+        }
+    }
+
     // Returns the number of elements in the table.
     public int size() {
         return size;
@@ -92,50 +675,101 @@ public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary
     
 
     /**
-     * Grows the size of the array.
-     * Also makes sure that the size of the
-     * Array is a prime number.
-     * @see oy.tol.tra.Algorithms#findPrime(int)
-     * 
+     * Doubles the size of the array. The elements are placed into the new
+     * array using their stored hashes, so the keys are not hashed again.
+     * In incremental mode, only the new array is allocated here, and the
+     * elements are moved by the following operations.
      */
-    @SuppressWarnings("unchecked")
     private void rehash() {
         rehashCount++;
-        Pair<K, V>[] oldTable = table;
-        table = new Pair[Algorithms.findPrime((int)((float)table_size * growRate))];
-        if(growRate > 2){
-            growRate--;
-        } else {
-            if(growRate > 1.75)
-                growRate -= 0.05;
-        }
-        table_size = table.length;
-        size = 0;
-        maxDP = 0;
+        if (!incremental) {
+            resize(table_size * 2);
+            return;
+        }
+        long start = System.nanoTime();
+        completeMigration();
+        oldKeys = keys;
+        oldValues = values;
+        oldHashes = hashes;
+        oldMask = mask;
+        migrated = 0;
+        allocate(table_size * 2);
+        rebuildFilter();
+        counters.resized(System.nanoTime() - start);
+    }
 
-        for (Pair<K, V> p : oldTable) {
-            if (p != null) {
-                add(p.getKey(), p.getValue());
+    /**
+     * Moves all the elements into a new array of the given size.
+     * @param capacity New size of the array, must be a power of two and larger than the number of elements.
+     */
+    private void resize(int capacity) {
+        long start = System.nanoTime();
+        completeMigration();
+        Object[] previousKeys = keys;
+        Object[] previousValues = values;
+        int[] previousHashes = hashes;
+        allocate(capacity);
+        for (int i = 0; i < previousKeys.length; i++) {
+            if (previousKeys[i] != null) {
+                insert(previousKeys[i], previousValues[i], previousHashes[i], previousHashes[i] & mask, 0);
+            }
+        }
+        rebuildFilter();
+        counters.resized(System.nanoTime() - start);
+    }
+
+    /**
+     * Replaces the hash strategy with a newly seeded one and places all the elements again
+     * with their new hashes. If the elements still collide (the strategy has no seed, or the
+     * keys have equal hash codes), the limit is raised so that this is not repeated on every add.
+     */
+    @SuppressWarnings("unchecked")
+    private void reseed() {
+        completeMigration();
+        strategy = strategy.reseed(SEEDS.nextLong());
+        reseedCount++;
+        Object[] previousKeys = keys;
+        Object[] previousValues = values;
+        allocate(table_size);
+        for (int i = 0; i < previousKeys.length; i++) {
+            if (previousKeys[i] != null) {
+                int h = hash((K) previousKeys[i]);
+                insert(previousKeys[i], previousValues[i], h, h & mask, 0);
             }
         }
+        if (maxDP > reseedDisplacement) {
+            reseedDisplacement = 2 * maxDP;
+        }
+        rebuildFilter();
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        table_size = capacity;
+        mask = capacity - 1;
+        maxDP = 0;
+        dpCounts = new int[16];
     }
 
     /**
-     * Calculates the distance from hash key to the actual location
-     * of the item in the array.
-     * For example, the character's 'a' hash key is 97. If its location on
-     * the array were to be in index 100, this function would then return 3. 
-     * @param k key of the item whos distance we are calculating
+     * Calculates the distance from the home index of the element in the given index
+     * to its actual location in the array, using the stored hash of the element.
+     * For example, if the home index of the element is 97 and it is located in
+     * index 100, this function returns 3. The distance wraps around the end of the array.
      * @param loc index where the element actually is.
      * @return returns the distance from the key and the actual index where the element is.
      */
-    private int displacement(K k, int loc) {
-        int h = hash(k);
-        return (loc >= h) ? (loc - h) : (table_size + loc - h);
+    private int displacement(int loc) {
+        return (loc - (hashes[loc] & mask)) & mask;
     }
 
+    /**
+     * Hashes the key with the hash strategy of the table.
+     */
     private int hash(K k) {
-        return (k.hashCode() & 0x7fffffff) % table_size;
+        return strategy.hash(k);
     }
 
     @Override
@@ -143,35 +777,163 @@ public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary
         return Type.HASHTABLE;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void ensureCapacity(int size) throws OutOfMemoryError {
         if(size >= Integer.MAX_VALUE){
             throw new OutOfMemoryError();
         }
-        this.table = new Pair[Algorithms.findPrime(size)];
-        this.table_size = Algorithms.findPrime(size);
+        growLoad = loadFactor;
+        allocate(Hashing.tableSizeFor((long) Math.ceil(size / loadFactor)));
+        oldKeys = null;
+        oldValues = null;
+        oldHashes = null;
         this.size = 0;
         this.rehashCount = 0;
         this.probeCount = 0;
         this.collissions = 0;
-        if(size < 5000){
-            growRate = 5;
+        rebuildFilter();
+    }
+
+    /**
+     * Enables or disables the membership filter. The filter is a {@link BloomFilter} of the
+     * hashes of the keys, checked by {@link #find(Comparable)} before any probing, so most
+     * finds of missing keys return at once. It costs about {@value BloomFilter#BITS_PER_KEY}
+     * bits per element the table can hold before growing, and a little time in each add.
+     * The filter is rebuilt whenever the table is reallocated, and after many removes.
+     * Note that the Robin Hood search already stops a miss after a few slots, and the filter
+     * adds a cache line to read to every find, so at the usual load factor it slows down the
+     * finds of keys that are found more than it speeds up the misses. It pays off when misses
+     * dominate, or when the keys are costly to compare.
+     * @param enabled If true, the filter is built of the current keys, if false, it is dropped.
+     */
+    public void setMembershipFilter(boolean enabled) {
+        filter = enabled ? new BloomFilter(0) : null;
+        rebuildFilter();
+    }
+
+    /**
+     * Builds the membership filter again of the keys in the table, sized for the number of
+     * elements the table can hold before growing. Does nothing if the filter is not used.
+     */
+    private void rebuildFilter() {
+        if (null == filter) {
+            return;
+        }
+        filter = new BloomFilter(Math.max(size, (int) (table_size * growLoad) + 1));
+        for (int index = 0; index < table_size; index++) {
+            if (null != keys[index]) {
+                filter.add(hashes[index]);
+            }
+        }
+        if (null != oldKeys) {
+            for (int index = 0; index < oldKeys.length; index++) {
+                if (null != oldValues[index]) {
+                    filter.add(oldHashes[index]);
+                }
+            }
+        }
+    }
+
+    private void removedFromFilter() {
+        if (null != filter) {
+            filter.removed();
+            if (filter.needsRebuild()) {
+                rebuildFilter();
+            }
         }
     }
 
+    /**
+     * Finds the value of the key.
+     */
     @Override
     public V find(K key) throws IllegalArgumentException {
-        int loc = hash(key);
-        for (int d = 0; d <= maxDP; d++) {
-            int index = (loc + d) % table_size;
-            if (null != table[index] && key.equals(table[index].getKey())) {
-                return table[index].getValue();
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        if (null != oldKeys) {
+            migrate(MIGRATION_STEP);
+        }
+        int h = hash(key);
+        if (null != filter && !filter.mightContain(h)) {
+            counters.filtered(true);
+            counters.lookup(false);
+            return null;
+        }
+        V value = lookup(key, h);
+        if (null == value && null != filter) {
+            counters.filtered(false);
+        }
+        counters.lookup(null != value);
+        return value;
+    }
+
+    /**
+     * Finds the value of the key without changing the table or counting the find, for the
+     * optimistic reads of {@link ConcurrentKeyValueHashTable}, which count a find only
+     * once they know it saw a consistent table.
+     */
+    V peek(K key) {
+        return lookup(key, hash(key));
+    }
+
+    /**
+     * Finds the value of the key in the table, and in the old array of an incremental rehash.
+     * @return The value, or null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    private V lookup(Object key, int h) {
+        int index = indexOf(key, h);
+        if (index >= 0) {
+            return (V) values[index];
+        }
+        if (null != oldKeys) {
+            int old = findOld(key, h);
+            if (old >= 0) {
+                return (V) oldValues[old];
             }
         }
         return null;
     }
 
+    /**
+     * Returns the counters of the operations of this table, to enable, disable or reset them.
+     */
+    public DictionaryCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Returns the statistics of the table. The probe lengths are the displacement histogram
+     * kept for maxDP, so nothing is scanned. During an incremental rehash the elements still
+     * in the old array are not in the histogram, but the old arrays are in the memory estimate.
+     */
+    @Override
+    public DictionaryStats getStats() {
+        DictionaryStats stats = new DictionaryStats(getType(), size);
+        stats.setCounters(counters);
+        stats.setCapacity(table_size);
+        int[] counts = dpCounts;
+        long[] probes = new long[Math.min(maxDP + 1, counts.length)];
+        for (int d = 0; d < probes.length; d++) {
+            probes[d] = counts[d];
+        }
+        stats.setProbeLengths(probes);
+        long memory = 2 * DictionaryStats.arrayBytes(table_size, 4) + DictionaryStats.arrayBytes(table_size, 4)
+                + DictionaryStats.arrayBytes(counts.length, 4);
+        Object[] old = oldKeys;
+        if (null != old) {
+            memory += 3 * DictionaryStats.arrayBytes(old.length, 4);
+        }
+        BloomFilter bloom = filter;
+        if (null != bloom) {
+            stats.setFilter(bloom.expectedFalsePositiveRate(), bloom.memoryBytes());
+            memory += bloom.memoryBytes();
+        }
+        stats.setMemoryBytes(memory);
+        return stats;
+    }
+
     private float load() {
         return ((float) size / (float) table_size);
     }
@@ -179,49 +941,157 @@ public class KeyValueHashTable<K extends Comparable<K>, V> implements Dictionary
     @Override
     public String getStatus() {
         StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Hash table fill factor is %.2f.%n", loadFactor));
+        sb.append(String.format("Hash table fill factor is %.2f.%n", growLoad));
         sb.append(String.format("Hash table had %d collisions when filling the hash table.%n", collissions));
         sb.append(String.format("Hash table had to probe %d times in the worst case.%n", probeCount));
         sb.append(String.format("Hash table had to reallocate %d times.%n", rehashCount));
+        if (reseedCount > 0) {
+            sb.append(String.format("Hash table changed its hash seed %d times because of colliding keys.%n", reseedCount));
+        }
         sb.append(String.format("Current fill rate is %.2f%%%n", (load() * 100)));
+        if (null != oldKeys) {
+            sb.append(String.format("Incremental rehash has moved %d of %d old slots.%n", migrated, oldKeys.length));
+        }
         return sb.toString();
     }
 
+    /**
+     * Returns the elements sorted by key. The Pairs are created here, the table
+     * itself does not store them.
+     *
+     * Large tables are exported in parallel: the slots are divided into ranges, each
+     * worker collects and sorts the elements of its own range, and the sorted runs are
+     * merged with {@link Algorithms#parallelMerge(Comparable[][], Comparable[])}.
+     */
     @SuppressWarnings("unchecked")
     @Override
     public Pair<K, V>[] toSortedArray() {
-        Pair<K, V>[] arr = new Pair[size];
+        completeMigration();
+        int runs = Math.min(table_size / MIN_REGION_SIZE, ForkJoinPool.getCommonPoolParallelism() * 4);
+        if (size < PARALLEL_BULK_SIZE || runs < 2) {
+            Pair<K, V>[] arr = new Pair[size];
+            collect(0, table_size, arr);
+            Algorithms.fastSort(arr);
+            return arr;
+        }
+        return Algorithms.sortRunsAndMerge(runs, run -> {
+            int from = (int) ((long) table_size * run / runs);
+            int to = (int) ((long) table_size * (run + 1) / runs);
+            int count = 0;
+            for (int index = from; index < to; index++) {
+                if (null != keys[index]) {
+                    count++;
+                }
+            }
+            Pair<K, V>[] slice = new Pair[count];
+            collect(from, to, slice);
+            return slice;
+        }, Pair[]::new);
+    }
+
+    /**
+     * Creates the Pairs of the elements in the slots [from, to) into the array.
+     */
+    @SuppressWarnings("unchecked")
+    private void collect(int from, int to, Pair<K, V>[] arr) {
         int i = 0;
-        for (Pair<K, V> p : table) {
-            if (null != p) {
-                arr[i++] = p;
+        for (int index = from; index < to; index++) {
+            if (null != keys[index]) {
+                arr[i++] = new Pair<K, V>((K) keys[index], (V) values[index]);
             }
         }
-        Algorithms.fastSort(arr, 0, arr.length - 1);
-        return arr;
     }
 
+    /**
+     * Returns the elements in slot order, which is no particular order.
+     * Finishes an incremental rehash first.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * Returns a spliterator over the slots. Splitting halves the slot range, and the
+     * hash spreads the elements evenly over the slots, so the halves have about the same
+     * number of elements. Finishes an incremental rehash first.
+     */
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        completeMigration();
+        return new SlotSpliterator(0, table_size);
+    }
+
+    private class SlotSpliterator extends IndexSpliterator<K, V> {
+        SlotSpliterator(int from, int to) {
+            super(from, to, Spliterator.NONNULL | Spliterator.DISTINCT);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        Pair<K, V> pairAt(int index) {
+            return null != keys[index] ? new Pair<>((K) keys[index], (V) values[index]) : null;
+        }
+
+        @Override
+        IndexSpliterator<K, V> create(int from, int to) {
+            return new SlotSpliterator(from, to);
+        }
+
+        @Override
+        long estimate(int length) {
+            return (long) length * size / table_size;
+        }
+    }
+
+    /**
+     * Calls the action for each key and value in slot order, without creating Pairs.
+     */
     @SuppressWarnings("unchecked")
     @Override
-    public void compress() throws OutOfMemoryError {
-        //Best collission handeling method in this case would be linear probing.
-        Pair<K, V>[] newTable = (Pair<K, V> [] )new Pair[size];
-        for(int i = 0; i < table_size; i++){
-            if(null != table[i]){
-                int loc = (table[i].getKey().hashCode() & 0x7fffffff) % size;
-                if(null == newTable[loc]){
-                    newTable[loc] = table[i]; 
-                } else {
-                    int counter = 0; //avoid infinite loop
-                    while(null != newTable[loc] && counter++ < size + 1){
-                        loc = (loc+1) % size;
-                    }
-                    newTable[loc] = table[i];
-                }
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        completeMigration();
+        for (int index = 0; index < table_size; index++) {
+            if (null != keys[index]) {
+                action.accept((K) keys[index], (V) values[index]);
             }
         }
-        this.table = newTable;
-        this.table_size = size;
-        maxDP = table_size; 
+    }
+
+    /**
+     * Shrinks the array for the target load of {@value #COMPRESSED_LOAD}.
+     * @see #compress(float)
+     */
+    @Override
+    public void compress() throws OutOfMemoryError {
+        compress(COMPRESSED_LOAD);
+    }
+
+    /**
+     * Shrinks the array to the smallest power of two where the load stays below the target,
+     * to save memory in a table that is no longer growing much. The elements are reinserted
+     * with Robin Hood hashing using their stored hashes, so the displacement histogram and
+     * maxDP stay exact and the finds stay short: at a load of 0.9 an element is on average
+     * a few slots from its home, and a miss stops at the first element closer to its home.
+     *
+     * From now on the table grows only when the load reaches the target (or the default
+     * load factor, if that is higher), so the next add does not grow the table back.
+     * The table is not grown if it already is smaller.
+     * {@link #ensureCapacity(int)} returns to the default load factor.
+     *
+     * @param targetLoad The highest load, over 0 and at most {@value #MAX_LOAD}.
+     * @throws IllegalArgumentException If the target load is out of range.
+     */
+    public void compress(float targetLoad) throws IllegalArgumentException, OutOfMemoryError {
+        if (!(targetLoad > 0.0f && targetLoad <= MAX_LOAD)) {
+            throw new IllegalArgumentException("Target load must be over 0 and at most " + MAX_LOAD);
+        }
+        completeMigration();
+        growLoad = Math.max(loadFactor, targetLoad);
+        // More slots than size / targetLoad, so the load is strictly below the target.
+        int capacity = Hashing.tableSizeFor((long) Math.floor(size / (double) targetLoad) + 1);
+        if (capacity < table_size) {
+            resize(capacity);
+        }
     }
 }
\ No newline at end of file
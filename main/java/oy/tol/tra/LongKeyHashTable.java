@@ -0,0 +1,83 @@
+package oy.tol.tra;
+
+/**
+ * Hash table with primitive long keys.
+ *
+ * Uses the same Robin Hood hashing as {@link KeyValueHashTable}, but the keys are
+ * kept in a flat {@code long[]} and the values in a parallel array, so adding and
+ * finding do not box the keys nor allocate a Pair for each element. A slot is
+ * empty when its value is null. The hashing itself is shared with {@link IntKeyHashTable}.
+ */
+public class LongKeyHashTable<V> extends PrimitiveKeyHashTable<V> {
+    private long[] keys;
+    private long[] previousKeys;
+
+    public LongKeyHashTable() {
+        ensureCapacity(DEFAULT_SIZE);
+    }
+
+    public LongKeyHashTable(int size) {
+        ensureCapacity(Math.max(size, DEFAULT_SIZE));
+    }
+
+    /**
+     * Adds a value for a key, replacing the value if the key is already in the table.
+     *
+     * @param key The key.
+     * @param value The associated value for the key. Must not be null.
+     * @return True when the value was added.
+     * @throws IllegalArgumentException Throws if value is null.
+     */
+    public boolean add(long key, V value) throws IllegalArgumentException, OutOfMemoryError {
+        return put(key, value);
+    }
+
+    /**
+     * Finds the value for the key.
+     * @param key The key to search.
+     * @return The value, or null if the key is not in the table.
+     */
+    public V find(long key) {
+        return get(key);
+    }
+
+    /**
+     * Removes the key from the table with backward shift deletion.
+     * @param key The key to remove.
+     * @return The value of the removed key, or null if the key was not in the table.
+     */
+    public V remove(long key) {
+        return delete(key);
+    }
+
+    @Override
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @Override
+    void setKey(int slot, long key) {
+        keys[slot] = key;
+    }
+
+    @Override
+    void allocateKeys(int capacity) {
+        previousKeys = keys;
+        keys = new long[capacity];
+    }
+
+    @Override
+    long previousKeyAt(int slot) {
+        return previousKeys[slot];
+    }
+
+    @Override
+    void releasePreviousKeys() {
+        previousKeys = null;
+    }
+
+    @Override
+    int hash(long key) {
+        return Hashing.mix(key);
+    }
+}
@@ -0,0 +1,426 @@
+package oy.tol.tra;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * A read only hash table stored in a file and read through a memory mapping.
+ *
+ * The file holds the Robin Hood slot array of the table and the keys and values
+ * serialized with a {@link Codec}. Opening the file only maps it, nothing is read
+ * nor deserialized, so it is fast even for a large table, and the processes of the
+ * same host share the pages of the file through the page cache. {@link #find(Comparable)}
+ * probes the mapped slots, compares the serialized key bytes in place, and
+ * deserializes only the value of the found key.
+ *
+ * The hash of a key is stored in the file, so the {@code hashCode} of the keys must
+ * give the same result in every JVM run, like the one of String does.
+ *
+ * File layout (big endian):
+ * <pre>
+ * header  64 bytes: magic, version, capacity, size, maxDP, the rest reserved
+ * slots   capacity * 16 bytes: mixed hash (int), key length (int), record offset (long, 0 = empty)
+ * records key bytes followed by value bytes
+ * </pre>
+ * A record never crosses a 1 GB boundary of the file, so each one can be read from a
+ * single mapped segment.
+ */
+public class MappedKeyValueHashTable<K extends Comparable<K>, V> implements Dictionary<K, V>, Closeable {
+    static final int MAGIC = 0x50484958; // "PHIX"
+    static final int VERSION = 2; // 2: Person hashes changed to FNV-1a.
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final float loadFactor = 0.60f;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int capacity;
+    private final int mask;
+    private final int size;
+    private final int maxDP;
+
+    private MappedKeyValueHashTable(FileChannel channel, MappedByteBuffer[] segments, Codec<K> keyCodec,
+            Codec<V> valueCodec) {
+        this.channel = channel;
+        this.segments = segments;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.capacity = getInt(8);
+        this.mask = capacity - 1;
+        this.size = getInt(12);
+        this.maxDP = getInt(16);
+    }
+
+    /**
+     * Writes the elements of the dictionary into a file.
+     * @param dictionary The elements to write.
+     * @param file The file to create or replace.
+     * @param keyCodec Writes the keys.
+     * @param valueCodec Writes the values.
+     * @throws IOException If writing fails.
+     */
+    public static <K extends Comparable<K>, V> void write(Dictionary<K, V> dictionary, Path file,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        write(dictionary.toSortedArray(), file, keyCodec, valueCodec);
+    }
+
+    /**
+     * Writes the pairs into a file. Of the same keys the last one is written.
+     * The records are written in slot order, so the records of the keys probed
+     * together are also near each other in the file.
+     * @param pairs The elements to write.
+     * @param file The file to create or replace.
+     * @param keyCodec Writes the keys.
+     * @param valueCodec Writes the values.
+     * @throws IOException If writing fails.
+     */
+    public static <K extends Comparable<K>, V> void write(Pair<K, V>[] pairs, Path file,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        int capacity = Hashing.tableSizeFor((long) Math.ceil(pairs.length / loadFactor));
+        int mask = capacity - 1;
+        // Place the pairs with Robin Hood hashing in memory, only the pair indices are moved.
+        int[] slotPair = new int[capacity];
+        int[] slotHash = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slotPair[i] = -1;
+        }
+        int size = 0;
+        int maxDP = 0;
+        for (int i = 0; i < pairs.length; i++) {
+            int p = i;
+            int h = Hashing.mix(pairs[i].getKey().hashCode());
+            int index = h & mask;
+            int d = 0;
+            boolean updated = false;
+            while (slotPair[index] >= 0) {
+                int resident = (index - (slotHash[index] & mask)) & mask;
+                if (p == i && slotHash[index] == h && pairs[slotPair[index]].getKey().equals(pairs[i].getKey())) {
+                    slotPair[index] = i; // Same key, the later pair wins.
+                    updated = true;
+                    break;
+                }
+                if (resident < d) {
+                    int tempPair = slotPair[index];
+                    int tempHash = slotHash[index];
+                    slotPair[index] = p;
+                    slotHash[index] = h;
+                    maxDP = Math.max(maxDP, d);
+                    p = tempPair;
+                    h = tempHash;
+                    d = resident;
+                }
+                index = (index + 1) & mask;
+                d++;
+            }
+            if (!updated) {
+                slotPair[index] = p;
+                slotHash[index] = h;
+                maxDP = Math.max(maxDP, d);
+                size++;
+            }
+        }
+
+        long recordsStart = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        long[] slotOffset = new long[capacity];
+        int[] slotKeyLength = new int[capacity];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(recordsStart);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            long position = recordsStart;
+            for (int index = 0; index < capacity; index++) {
+                if (slotPair[index] < 0) {
+                    continue;
+                }
+                Pair<K, V> pair = pairs[slotPair[index]];
+                record.reset();
+                keyCodec.write(pair.getKey(), recordOut);
+                int keyLength = record.size();
+                valueCodec.write(pair.getValue(), recordOut);
+                if (record.size() > SEGMENT_SIZE) {
+                    throw new IOException("Record too large for the file");
+                }
+                long segmentLeft = SEGMENT_SIZE - (position & (SEGMENT_SIZE - 1));
+                if (record.size() > segmentLeft) {
+                    for (long i = 0; i < segmentLeft; i++) {
+                        out.write(0);
+                    }
+                    position += segmentLeft;
+                }
+                slotOffset[index] = position;
+                slotKeyLength[index] = keyLength;
+                record.writeTo(out);
+                position += record.size();
+            }
+            out.flush();
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(size).putInt(maxDP);
+            buffer.position(HEADER_SIZE);
+            long filePosition = 0;
+            for (int index = 0; index < capacity; index++) {
+                if (buffer.remaining() < SLOT_SIZE) {
+                    filePosition += writeFully(channel, buffer, filePosition);
+                }
+                buffer.putInt(slotHash[index]).putInt(slotKeyLength[index]).putLong(slotOffset[index]);
+            }
+            writeFully(channel, buffer, filePosition);
+            channel.force(true);
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Opens a file written with {@link #write(Pair[], Path, Codec, Codec)}.
+     * @param file The file to open.
+     * @param keyCodec Reads the keys; must be the one the file was written with.
+     * @param valueCodec Reads the values; must be the one the file was written with.
+     * @return The table.
+     * @throws IOException If the file cannot be read or is not a table file of this version.
+     */
+    public static <K extends Comparable<K>, V> MappedKeyValueHashTable<K, V> open(Path file,
+            Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Not a hash table file: " + file);
+            }
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            if (segments[0].getInt(0) != MAGIC) {
+                throw new IOException("Not a hash table file: " + file);
+            }
+            if (segments[0].getInt(4) != VERSION) {
+                throw new IOException("Unsupported hash table file version " + segments[0].getInt(4) + ": " + file);
+            }
+            int capacity = segments[0].getInt(8);
+            if (Integer.bitCount(capacity) != 1 || HEADER_SIZE + (long) capacity * SLOT_SIZE > length) {
+                throw new IOException("Corrupted hash table file: " + file);
+            }
+            return new MappedKeyValueHashTable<>(channel, segments, keyCodec, valueCodec);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private int getInt(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getInt((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Returns a buffer positioned at the record, not sharing the position with other readers.
+     */
+    private ByteBuffer bufferAt(long position) {
+        ByteBuffer buffer = segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+        buffer.position((int) (position & (SEGMENT_SIZE - 1)));
+        return buffer;
+    }
+
+    private boolean keyEquals(long position, byte[] key) {
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        for (int i = 0; i < key.length; i++) {
+            if (segment.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encode(K key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            keyCodec.write(key, new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot encode the key", e);
+        }
+    }
+
+    /**
+     * Finds the value of the key from the mapped file. The key is serialized
+     * only if a slot with the same hash is met.
+     */
+    @Override
+    public V find(K key) throws IllegalArgumentException {
+        if (null == key) {
+            throw new IllegalArgumentException();
+        }
+        int h = Hashing.mix(key.hashCode());
+        byte[] encoded = null;
+        int index = h & mask;
+        for (int d = 0; d <= maxDP; d++) {
+            long slot = HEADER_SIZE + (long) index * SLOT_SIZE;
+            long offset = getLong(slot + 8);
+            if (0 == offset) {
+                return null;
+            }
+            int slotHash = getInt(slot);
+            if (((index - (slotHash & mask)) & mask) < d) {
+                return null;
+            }
+            if (slotHash == h) {
+                if (null == encoded) {
+                    encoded = encode(key);
+                }
+                int keyLength = getInt(slot + 4);
+                if (keyLength == encoded.length && keyEquals(offset, encoded)) {
+                    return valueCodec.read(bufferAt(offset + keyLength));
+                }
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.HASHTABLE;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Mapped hash table has %d slots in %d mapped segments.%n", capacity, segments.length));
+        sb.append(String.format("Hash table had to probe %d times in the worst case.%n", maxDP));
+        sb.append(String.format("Current fill rate is %.2f%%%n", (size * 100.0f / capacity)));
+        return sb.toString();
+    }
+
+    /**
+     * Reads all the elements from the file, sorted by key.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Pair<K, V>[] toSortedArray() {
+        Pair<K, V>[] arr = new Pair[size];
+        int i = 0;
+        for (Pair<K, V> pair : this) {
+            arr[i++] = pair;
+        }
+        Algorithms.fastSort(arr);
+        return arr;
+    }
+
+    /**
+     * Returns the elements in slot order. Each element is read from the file when iterated to.
+     */
+    @Override
+    public Iterator<Pair<K, V>> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    @Override
+    public Spliterator<Pair<K, V>> spliterator() {
+        return new MappedSpliterator(0, capacity);
+    }
+
+    private class MappedSpliterator extends IndexSpliterator<K, V> {
+        MappedSpliterator(int from, int to) {
+            super(from, to, Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.IMMUTABLE);
+        }
+
+        @Override
+        Pair<K, V> pairAt(int index) {
+            long offset = getLong(HEADER_SIZE + (long) index * SLOT_SIZE + 8);
+            if (0 == offset) {
+                return null;
+            }
+            ByteBuffer buffer = bufferAt(offset);
+            K key = keyCodec.read(buffer);
+            return new Pair<>(key, valueCodec.read(buffer));
+        }
+
+        @Override
+        IndexSpliterator<K, V> create(int from, int to) {
+            return new MappedSpliterator(from, to);
+        }
+
+        @Override
+        long estimate(int length) {
+            return (long) length * size / capacity;
+        }
+    }
+
+    /**
+     * The table is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public boolean add(K key, V value) {
+        throw new UnsupportedOperationException("Mapped hash table is read only");
+    }
+
+    /**
+     * The table is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public V remove(K key) {
+        throw new UnsupportedOperationException("Mapped hash table is read only");
+    }
+
+    /**
+     * The table is read only.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public void ensureCapacity(int size) {
+        throw new UnsupportedOperationException("Mapped hash table is read only");
+    }
+
+    @Override
+    public void compress() {
+        return;
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when the table is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,60 +3,129 @@ package oy.tol.tra;
 /**
  * Tree Node class created for AVL self-balancing tree.
  * Keeps track of the height of each node.
+ *
+ * Keys that collide in the tree (the same hash code in hash order, or compareTo
+ * equal in key order) share a node. The pairs of the node are kept in a small array
+ * sorted by compareTo of the keys, so a key is found among them with a binary search.
  */
 public class Node<K extends Comparable<K>, V> {
 
-    private Pair<K, V> keyValue; // Data
+    private Pair<K, V>[] pairs; // Sorted by key, usually only one.
+    private int pairCount;
     private int keyHash;         // Key
     private int height = 1;
     private Node<K, V> left = null;
     private Node<K, V> right = null;
-    private LinkedLista<K, V> chain = null;
-
-    
 
+    @SuppressWarnings("unchecked")
     Node(K key, V value) {
-        keyValue = new Pair<K, V>(key, value);
+        pairs = new Pair[] { new Pair<K, V>(key, value) };
+        pairCount = 1;
         height = 1; // Default height.
         keyHash = key.hashCode(); // This way the hash needs to be calculated only once.
     }
 
-    public boolean add(Pair<K, V> p){
-        if (null == chain){
-            chain = new LinkedLista<>(p);
-            return true;
+    /**
+     * Adds a colliding key to this node, or updates the value if the key is already here.
+     * @param k The key.
+     * @param v The value.
+     * @return True if the key was added, false if its value was updated.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean add(K k, V v){
+        int index = indexOf(k);
+        if (index >= 0) {
+            pairs[index].setvalue(v);
+            return false;
         }
-        return chain.add(p);
+        index = -index - 1;
+        if (pairCount == pairs.length) {
+            Pair<K, V>[] bigger = new Pair[pairCount * 2];
+            System.arraycopy(pairs, 0, bigger, 0, pairCount);
+            pairs = bigger;
+        }
+        System.arraycopy(pairs, index, pairs, index + 1, pairCount - index);
+        pairs[index] = new Pair<K, V>(k, v);
+        pairCount++;
+        return true;
     }
 
-    public boolean hasNext(){
-        return (null != chain) ? true : false;
+    /**
+     * Removes the pair with the given key from this node.
+     * If the node has no pairs left, it is empty and must be removed from the tree.
+     * @param k Key of the pair to remove.
+     * @return The removed pair, or null if the key is not in this node.
+     * @see #isEmpty()
+     */
+    public Pair<K, V> remove(K k){
+        int index = indexOf(k);
+        if (index < 0) {
+            return null;
+        }
+        Pair<K, V> removed = pairs[index];
+        System.arraycopy(pairs, index + 1, pairs, index, pairCount - index - 1);
+        pairs[--pairCount] = null;
+        return removed;
     }
 
-    public int chainLength(){
-        return chain.getSize();
+    public boolean isEmpty(){
+        return 0 == pairCount;
     }
 
-    public Pair<K, V> chainGetIndex(int index){
-        return chain.getIndex(index);
+    /**
+     * Returns the number of pairs in this node, more than one when keys collide.
+     */
+    public int pairCount(){
+        return pairCount;
+    }
+
+    /**
+     * Returns a pair of this node in key order.
+     * @param index Index of the pair, from 0 to {@link #pairCount()} - 1.
+     */
+    public Pair<K, V> getPair(int index){
+        return pairs[index];
     }
 
     public Pair<K, V> find(K k){
-        if(k.equals(keyValue.getKey())){
-            return keyValue;
+        int index = indexOf(k);
+        return index >= 0 ? pairs[index] : null;
+    }
+
+    /**
+     * Binary search of the key among the pairs. Keys that compare equal but are not
+     * equal are next to each other, so they are checked one by one.
+     * @return The index of the key, or (-(insertion point) - 1) if it is not in this node.
+     */
+    private int indexOf(K k) {
+        int low = 0;
+        int high = pairCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (pairs[middle].getKey().compareTo(k) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
         }
-        if(chain == null){
-            return null;
+        for (int i = low; i < pairCount && pairs[i].getKey().compareTo(k) == 0; i++) {
+            if (pairs[i].getKey().equals(k)) {
+                return i;
+            }
+            high = i + 1;
         }
-        return chain.find(k);
+        return -high - 1;
     }
  
     public int getHash() {
         return keyHash;
     }
 
+    /**
+     * Returns the first pair of this node in key order.
+     */
     public Pair<K, V> getPair() {
-        return keyValue;
+        return pairs[0];
     }
 
     public void setHeight(int h) {
@@ -77,11 +146,11 @@ public class Node<K extends Comparable<K>, V> {
     }
 
     public K getKey() {
-        return keyValue.getKey();
+        return pairs[0].getKey();
     }
 
     public V getValue() {
-        return keyValue.getValue();
+        return pairs[0].getValue();
     }
 
     public Node<K, V> getLeft() {
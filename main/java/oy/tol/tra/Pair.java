@@ -32,6 +32,32 @@ public class Pair<K extends Comparable<K>, V> implements Comparable<Pair<K, V>>
       this.value = value;
    }
 
+   /**
+    * Copies the pairs of the iterable into an array.
+    * @param pairs The pairs to copy.
+    * @return The pairs in iteration order.
+    */
+   @SuppressWarnings("unchecked")
+   static <K extends Comparable<K>, V> Pair<K, V> [] toArray(Iterable<Pair<K, V>> pairs) {
+      Pair<K, V> [] array = (Pair<K, V> []) new Pair[16];
+      int count = 0;
+      for (Pair<K, V> pair : pairs) {
+         if (count == array.length) {
+            Pair<K, V> [] bigger = (Pair<K, V> []) new Pair[count * 2];
+            for (int i = 0; i < count; i++) {
+               bigger[i] = array[i];
+            }
+            array = bigger;
+         }
+         array[count++] = pair;
+      }
+      Pair<K, V> [] result = (Pair<K, V> []) new Pair[count];
+      for (int i = 0; i < count; i++) {
+         result[i] = array[i];
+      }
+      return result;
+   }
+
    @Override
    public int compareTo(Pair<K, V> o) {
       return key.compareTo(o.key);
@@ -1,16 +1,36 @@
 package oy.tol.tra;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Person implements Comparable<Person> {
     // Source: https://en.wikipedia.org/wiki/Fowler%E2%80%93Noll%E2%80%93Vo_hash_function
-    private static final int OFFSET_BASIS = 0x811C9DC5; // Popular FNV1 CONSTANT 2166136261. Doesn't overflow because it is stored as hexadecimal literal.
-    private static final int PRIME = 0x01000193; // Popular FNV1 prime.
-    private String firstName;
-    private String lastName;
+    private static final long OFFSET_BASIS = 0xCBF29CE484222325L; // 64-bit FNV offset basis 14695981039346656037.
+    private static final long PRIME = 0x100000001B3L; // 64-bit FNV prime.
+    private final String firstName;
+    private final String lastName;
+    private final long hash; // FNV-1a of the names, computed once.
+
+    /** Writes the first name and the last name. */
+    public static final Codec<Person> CODEC = new Codec<Person>() {
+        @Override
+        public void write(Person value, DataOutput out) throws IOException {
+            Codec.writeString(value.firstName, out);
+            Codec.writeString(value.lastName, out);
+        }
+
+        @Override
+        public Person read(ByteBuffer buffer) {
+            String firstName = Codec.readString(buffer);
+            return new Person(firstName, Codec.readString(buffer));
+        }
+    };
 
     public Person(String firstName, String lastName) {
         this.firstName = firstName;
         this.lastName = lastName;
+        this.hash = FNV1aHash(firstName, lastName);
     }
 
     public String getLastName() {
@@ -25,11 +45,14 @@ public class Person implements Comparable<Person> {
         return lastName + " " + firstName;
     }
 
+    /**
+     * Orders the persons by last name, and persons with the same last name by first name,
+     * like in a phonebook.
+     */
     @Override
     public int compareTo(Person o) {
-        int thiss = this.hashCode();
-        int other = o.hashCode();
-        return thiss > other ? 1 : thiss == other ? 0 : -1;
+        int result = lastName.compareTo(o.lastName);
+        return result != 0 ? result : firstName.compareTo(o.firstName);
     }
 
     public boolean equals(Object person) {
@@ -41,16 +64,35 @@ public class Person implements Comparable<Person> {
         return false;
     }
 
+    /**
+     * Returns the hash computed when the person was created, folded to 32 bits.
+     * Nothing is allocated nor computed here, so the hash tables can call this freely.
+     */
     public int hashCode() {
-        String fullName = new StringBuilder().append(firstName).append(lastName).toString();
-        return fullName.hashCode();
-        //return FNV1aHash(fullName);
+        return (int) (hash ^ (hash >>> 32));
     }
 
-    private int FNV1aHash(String name){
-        int hash = OFFSET_BASIS;
-        for (int i = 0; i < name.length(); i++) {
-            hash ^= name.charAt(i);
+    /**
+     * Returns the full 64-bit FNV-1a hash of the names, for structures that use more than 32 bits.
+     */
+    public long hash64() {
+        return hash;
+    }
+
+    /**
+     * 64-bit FNV-1a over the chars of both names, without concatenating them.
+     * A separator between the names keeps "Ann Ek" and "An Nek" apart.
+     */
+    private static long FNV1aHash(String firstName, String lastName) {
+        long hash = OFFSET_BASIS;
+        for (int i = 0; i < firstName.length(); i++) {
+            hash ^= firstName.charAt(i);
+            hash *= PRIME;
+        }
+        hash ^= 0xFFFF; // The noncharacter U+FFFF, not used in names.
+        hash *= PRIME;
+        for (int i = 0; i < lastName.length(); i++) {
+            hash ^= lastName.charAt(i);
             hash *= PRIME;
         }
         return hash;
@@ -1,10 +1,31 @@
 package oy.tol.tra;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class PhoneNumber {
     private String countryCode;
     private String areaCode;
     private String phoneNumber;
 
+    /** Writes the country code, the area code and the number. */
+    public static final Codec<PhoneNumber> CODEC = new Codec<PhoneNumber>() {
+        @Override
+        public void write(PhoneNumber value, DataOutput out) throws IOException {
+            Codec.writeString(value.countryCode, out);
+            Codec.writeString(value.areaCode, out);
+            Codec.writeString(value.phoneNumber, out);
+        }
+
+        @Override
+        public PhoneNumber read(ByteBuffer buffer) {
+            String countryCode = Codec.readString(buffer);
+            String areaCode = Codec.readString(buffer);
+            return new PhoneNumber(countryCode, areaCode, Codec.readString(buffer));
+        }
+    };
+
     public PhoneNumber(String countryCode, String areaCode, String phoneNumber) {
         this.countryCode = countryCode;
         this.areaCode = areaCode;
@@ -0,0 +1,296 @@
+package oy.tol.tra;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loads phonebook files into a dictionary.
+ *
+ * A phonebook file has one person per line, in UTF-8:
+ * <pre>
+ * first names,last name,country code,area code,phone number
+ * </pre>
+ *
+ * The loading is a pipeline of three stages running at the same time. A reader thread
+ * reads the file in large chunks and cuts each chunk at its last line break. The chunks
+ * are parsed on a pool of worker threads into batches of pairs. The calling thread adds
+ * the batches to the dictionary with {@link Dictionary#addAll(Pair[])} in file order, so
+ * of the same persons the last one in the file stays in the dictionary. Between the reader
+ * and the calling thread there is a bounded buffer of the pending batches: when the
+ * dictionary cannot keep up, the reader waits instead of filling the memory.
+ *
+ * Lines that do not have five fields are skipped and counted, see {@link #getMalformedLines()}.
+ */
+public class PhonebookLoader {
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int FIELDS = 5;
+
+    private final int threads;
+    private final int chunkSize;
+    private long loadedLines = 0;
+    private long malformedLines = 0;
+
+    public PhonebookLoader() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates the loader.
+     * @param threads Number of the parsing threads.
+     * @param chunkSize Number of bytes read at a time. A longer line grows the chunk.
+     */
+    public PhonebookLoader(int threads, int chunkSize) {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Number of the lines parsed by the latest load. A person repeated in the file, or
+     * already in the dictionary, is counted on each of its lines, see {@link #load(Path, Dictionary)}.
+     */
+    public long getLoadedLines() {
+        return loadedLines;
+    }
+
+    /**
+     * Number of the lines skipped by the latest load because they could not be parsed.
+     */
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    /**
+     * Loads the file into the dictionary.
+     * @param file The phonebook file.
+     * @param dictionary Where to add the persons and their phone numbers.
+     * @return Number of the persons added, that is, the growth of the dictionary. Persons
+     *         repeated in the file or already in the dictionary only update the phone number.
+     * @throws IOException If reading the file fails.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the batches.
+     */
+    public long load(Path file, Dictionary<Person, PhoneNumber> dictionary) throws IOException, InterruptedException {
+        loadedLines = 0;
+        malformedLines = 0;
+        int before = dictionary.size();
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "phonebook-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        BoundedBuffer<Future<Batch>> pending = new BoundedBuffer<>(threads * 2);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        Thread reader = new Thread(() -> read(channel, parsers, pending), "phonebook-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            while (true) {
+                Batch batch;
+                try {
+                    batch = pending.take().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw new IOException("Parsing " + file + " failed", e.getCause());
+                }
+                if (null == batch) {
+                    break; // End of the file.
+                }
+                dictionary.addAll(batch.pairs);
+                loadedLines += batch.pairs.length;
+                malformedLines += batch.malformed;
+            }
+        } finally {
+            reader.interrupt();
+            parsers.shutdownNow();
+            channel.close();
+        }
+        return dictionary.size() - before;
+    }
+
+    /**
+     * Reads the chunks and hands them to the parsers. Runs on the reader thread.
+     */
+    private void read(FileChannel channel, ExecutorService parsers, BoundedBuffer<Future<Batch>> pending) {
+        try {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                while (channel.read(buffer) >= 0) {
+                    if (buffer.hasRemaining()) {
+                        continue; // Fill the whole chunk first.
+                    }
+                    int end = lastLineBreak(buffer);
+                    if (end < 0) {
+                        // A line longer than the chunk.
+                        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                        buffer.flip();
+                        bigger.put(buffer);
+                        buffer = bigger;
+                        continue;
+                    }
+                    byte[] chunk = new byte[end + 1];
+                    buffer.flip();
+                    buffer.get(chunk);
+                    pending.put(parsers.submit(() -> parse(chunk, chunk.length)));
+                    buffer.compact(); // The beginning of the next line moves to the start.
+                }
+                if (buffer.position() > 0) {
+                    byte[] chunk = new byte[buffer.position()];
+                    buffer.flip();
+                    buffer.get(chunk);
+                    pending.put(parsers.submit(() -> parse(chunk, chunk.length)));
+                }
+                pending.put(CompletableFuture.completedFuture(null));
+            } catch (IOException e) {
+                CompletableFuture<Batch> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new UncheckedIOException(e));
+                pending.put(failed);
+            }
+        } catch (InterruptedException e) {
+            // The loading was stopped.
+        }
+    }
+
+    private static int lastLineBreak(ByteBuffer buffer) {
+        for (int i = buffer.position() - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the lines of a chunk. Runs on a parser thread.
+     * The commas and line breaks are single bytes in UTF-8, so the fields are
+     * found from the bytes and only the fields are decoded into strings.
+     */
+    @SuppressWarnings("unchecked")
+    static Batch parse(byte[] chunk, int length) {
+        Pair<Person, PhoneNumber>[] pairs = new Pair[Math.max(16, length / 48)];
+        int count = 0;
+        int malformed = 0;
+        int[] commas = new int[FIELDS - 1];
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            int fields = 1;
+            while (end < length && chunk[end] != '\n') {
+                if (chunk[end] == ',') {
+                    if (fields < FIELDS) {
+                        commas[fields - 1] = end;
+                    }
+                    fields++;
+                }
+                end++;
+            }
+            int next = end + 1;
+            if (end > start && chunk[end - 1] == '\r') {
+                end--;
+            }
+            if (end > start) {
+                if (fields != FIELDS) {
+                    malformed++;
+                } else {
+                    if (count == pairs.length) {
+                        Pair<Person, PhoneNumber>[] bigger = new Pair[count * 2];
+                        for (int i = 0; i < count; i++) {
+                            bigger[i] = pairs[i];
+                        }
+                        pairs = bigger;
+                    }
+                    Person person = new Person(field(chunk, start, commas[0]), field(chunk, commas[0] + 1, commas[1]));
+                    PhoneNumber number = new PhoneNumber(field(chunk, commas[1] + 1, commas[2]),
+                            field(chunk, commas[2] + 1, commas[3]), field(chunk, commas[3] + 1, end));
+                    pairs[count++] = new Pair<>(person, number);
+                }
+            }
+            start = next;
+        }
+        Pair<Person, PhoneNumber>[] result = new Pair[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = pairs[i];
+        }
+        return new Batch(result, malformed);
+    }
+
+    private static String field(byte[] chunk, int from, int to) {
+        return new String(chunk, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parsed pairs of one chunk.
+     */
+    static final class Batch {
+        final Pair<Person, PhoneNumber>[] pairs;
+        final int malformed;
+
+        Batch(Pair<Person, PhoneNumber>[] pairs, int malformed) {
+            this.pairs = pairs;
+            this.malformed = malformed;
+        }
+    }
+
+    /**
+     * A fixed size blocking FIFO buffer between the reader and the consumer.
+     */
+    private static final class BoundedBuffer<T> {
+        private final Object[] items;
+        private int head = 0;
+        private int count = 0;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        BoundedBuffer(int capacity) {
+            items = new Object[capacity];
+        }
+
+        void put(T item) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == items.length) {
+                    notFull.await();
+                }
+                items[(head + count) % items.length] = item;
+                count++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == 0) {
+                    notEmpty.await();
+                }
+                T item = (T) items[head];
+                items[head] = null;
+                head = (head + 1) % items.length;
+                count--;
+                notFull.signal();
+                return item;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
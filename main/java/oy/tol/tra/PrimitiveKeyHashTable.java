@@ -0,0 +1,278 @@
+package oy.tol.tra;
+
+/**
+ * Robin Hood hashing shared by the hash tables with primitive keys, {@link IntKeyHashTable}
+ * and {@link LongKeyHashTable}.
+ *
+ * The probing, the displacement histogram, the backward shift deletion and the resizing
+ * are written here once, with the keys widened to long. The subclasses keep the keys in an
+ * array of their own primitive type, and only store, read and hash them. The values are in
+ * a parallel array, and a slot is empty when its value is null.
+ */
+abstract class PrimitiveKeyHashTable<V> {
+    static final int DEFAULT_SIZE = 1024;
+    private static final float loadFactor = 0.60f;
+    private static final float COMPRESSED_LOAD = 0.90f; // Target load of compress().
+    private static final float MAX_LOAD = 0.95f; // Highest target load of compress(float).
+    private int table_size; // Always a power of two.
+    private int mask;
+
+    private Object[] values;
+    private int maxDP; // The largest displacement of any element.
+    private int[] dpCounts; // Number of elements with each displacement.
+    private int size;
+    private float growLoad = loadFactor; // The table grows at this load, compress(float) raises it.
+    private int collissions;
+    private int rehashCount;
+    private int probeCount;
+
+    /**
+     * Returns the key in the slot.
+     */
+    abstract long keyAt(int slot);
+
+    /**
+     * Stores the key into the slot. The key is always one given to the subclass, so it fits its type.
+     */
+    abstract void setKey(int slot, long key);
+
+    /**
+     * Allocates a new key array of the given size. The previous array is kept for
+     * {@link #previousKeyAt(int)} until {@link #releasePreviousKeys()}.
+     */
+    abstract void allocateKeys(int capacity);
+
+    abstract long previousKeyAt(int slot);
+
+    abstract void releasePreviousKeys();
+
+    /**
+     * Hashes the key. The low bits choose the home slot, so they must depend on all the bits of the key.
+     */
+    abstract int hash(long key);
+
+    /**
+     * Adds a value for a key, replacing the value if the key is already in the table.
+     */
+    final boolean put(long key, Object value) throws IllegalArgumentException, OutOfMemoryError {
+        if (null == value) {
+            throw new IllegalArgumentException();
+        }
+        if (load() >= growLoad) {
+            rehash();
+        }
+        int index = hash(key) & mask;
+        int d = 0;
+        while (values[index] != null && displacement(index) >= d) {
+            if (keyAt(index) == key) {
+                values[index] = value;
+                return true;
+            }
+            index = (index + 1) & mask;
+            d++;
+        }
+        collissions += d;
+        insert(key, value, index, d);
+        return true;
+    }
+
+    private void insert(long key, Object value, int index, int d) {
+        int probeTemp = d;
+        while (true) {
+            if (values[index] == null) {
+                setKey(index, key);
+                values[index] = value;
+                size++;
+                countDP(d);
+                if (probeTemp > probeCount) {
+                    probeCount = probeTemp;
+                }
+                return;
+            }
+            int resident = displacement(index);
+            if (resident < d) {
+                // Start moving another element with lower distance-score.
+                long tempKey = keyAt(index);
+                Object tempValue = values[index];
+                setKey(index, key);
+                values[index] = value;
+                dpCounts[resident]--;
+                countDP(d);
+                key = tempKey;
+                value = tempValue;
+                d = resident;
+            }
+            index = (index + 1) & mask;
+            d++;
+            collissions++;
+            probeTemp++;
+        }
+    }
+
+    /**
+     * Finds the value for the key, or null if the key is not in the table.
+     * The search stops at an element closer to its home than the key would be.
+     */
+    @SuppressWarnings("unchecked")
+    final V get(long key) {
+        int index = hash(key) & mask;
+        for (int d = 0; d <= maxDP; d++) {
+            if (null == values[index] || displacement(index) < d) {
+                return null;
+            }
+            if (keyAt(index) == key) {
+                return (V) values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the key from the table with backward shift deletion.
+     * @return The value of the removed key, or null if the key was not in the table.
+     */
+    @SuppressWarnings("unchecked")
+    final V delete(long key) {
+        int index = hash(key) & mask;
+        int d = 0;
+        while (values[index] != null && displacement(index) >= d) {
+            if (keyAt(index) == key) {
+                V value = (V) values[index];
+                shiftBack(index);
+                size--;
+                return value;
+            }
+            index = (index + 1) & mask;
+            d++;
+        }
+        return null;
+    }
+
+    private void shiftBack(int index) {
+        dpCounts[displacement(index)]--;
+        int next = (index + 1) & mask;
+        while (values[next] != null) {
+            int d = displacement(next);
+            if (d == 0) {
+                break;
+            }
+            setKey(index, keyAt(next));
+            values[index] = values[next];
+            dpCounts[d]--;
+            dpCounts[d - 1]++;
+            index = next;
+            next = (next + 1) & mask;
+        }
+        setKey(index, 0);
+        values[index] = null;
+        while (maxDP > 0 && dpCounts[maxDP] == 0) {
+            maxDP--;
+        }
+    }
+
+    private void countDP(int d) {
+        if (d >= dpCounts.length) {
+            int[] counts = new int[Math.max(d + 1, dpCounts.length * 2)];
+            for (int i = 0; i < dpCounts.length; i++) {
+                counts[i] = dpCounts[i];
+            }
+            dpCounts = counts;
+        }
+        dpCounts[d]++;
+        if (d > maxDP) {
+            maxDP = d;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ensures the table has room for {@code size} elements. Removes all elements
+     * from the table, like {@link Dictionary#ensureCapacity(int)}, and returns to the
+     * default load factor.
+     */
+    public void ensureCapacity(int size) throws OutOfMemoryError {
+        growLoad = loadFactor;
+        allocate(Hashing.tableSizeFor((long) Math.ceil(size / loadFactor)));
+        this.size = 0;
+        this.rehashCount = 0;
+        this.probeCount = 0;
+        this.collissions = 0;
+    }
+
+    /**
+     * Shrinks the array for the target load of {@value #COMPRESSED_LOAD}.
+     * @see #compress(float)
+     */
+    public void compress() throws OutOfMemoryError {
+        compress(COMPRESSED_LOAD);
+    }
+
+    /**
+     * Shrinks the array to the smallest power of two where the load stays below the target,
+     * like {@link KeyValueHashTable#compress(float)}. The elements are reinserted with
+     * Robin Hood hashing, so maxDP stays exact, and from now on the table grows only when
+     * the load reaches the target (or the default load factor, if that is higher).
+     * @param targetLoad The highest load, over 0 and at most {@value #MAX_LOAD}.
+     * @throws IllegalArgumentException If the target load is out of range.
+     */
+    public void compress(float targetLoad) throws IllegalArgumentException, OutOfMemoryError {
+        if (!(targetLoad > 0.0f && targetLoad <= MAX_LOAD)) {
+            throw new IllegalArgumentException("Target load must be over 0 and at most " + MAX_LOAD);
+        }
+        growLoad = Math.max(loadFactor, targetLoad);
+        // More slots than size / targetLoad, so the load is strictly below the target.
+        int capacity = Hashing.tableSizeFor((long) Math.floor(size / (double) targetLoad) + 1);
+        if (capacity < table_size) {
+            resize(capacity);
+        }
+    }
+
+    private void rehash() {
+        rehashCount++;
+        resize(table_size * 2);
+    }
+
+    private void resize(int capacity) {
+        Object[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                long key = previousKeyAt(i);
+                insert(key, oldValues[i], hash(key) & mask, 0);
+            }
+        }
+        releasePreviousKeys();
+    }
+
+    private void allocate(int capacity) {
+        allocateKeys(capacity);
+        values = new Object[capacity];
+        table_size = capacity;
+        mask = capacity - 1;
+        maxDP = 0;
+        dpCounts = new int[16];
+    }
+
+    private int displacement(int loc) {
+        return (loc - (hash(keyAt(loc)) & mask)) & mask;
+    }
+
+    private float load() {
+        return ((float) size / (float) table_size);
+    }
+
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Hash table fill factor is %.2f.%n", growLoad));
+        sb.append(String.format("Hash table had %d collisions when filling the hash table.%n", collissions));
+        sb.append(String.format("Hash table had to probe %d times in the worst case.%n", probeCount));
+        sb.append(String.format("Hash table had to reallocate %d times.%n", rehashCount));
+        sb.append(String.format("Current fill rate is %.2f%%%n", (load() * 100)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,22 @@
+package oy.tol.tra;
+
+import java.io.IOException;
+
+/**
+ * Publishes the statistics of dictionaries to a monitoring system.
+ *
+ * An exporter is called by the polling thread of the monitoring, with a snapshot from
+ * {@link Dictionary#getStats()}, so exporting costs nothing on the operations of the
+ * dictionaries. See {@link TextStatsExporter} for the Prometheus text format.
+ */
+@FunctionalInterface
+public interface StatsExporter {
+
+    /**
+     * Exports the statistics of one dictionary.
+     * @param name Name of the dictionary, to tell the dictionaries apart.
+     * @param stats The statistics.
+     * @throws IOException If writing the statistics fails.
+     */
+    void export(String name, DictionaryStats stats) throws IOException;
+}
@@ -0,0 +1,71 @@
+package oy.tol.tra;
+
+import java.io.IOException;
+
+/**
+ * Writes the statistics in the Prometheus text exposition format, one sample per line:
+ * <pre>
+ * dictionary_lookups_total{name="phonebook",type="HASHTABLE",result="hit"} 1024
+ * dictionary_probe_length{name="phonebook",type="HASHTABLE",length="3"} 17
+ * </pre>
+ * The histograms are written with a sample per length that has elements.
+ */
+public class TextStatsExporter implements StatsExporter {
+    private final Appendable out;
+
+    /**
+     * Creates the exporter.
+     * @param out Where to write, for example a StringBuilder or a Writer of an HTTP response.
+     */
+    public TextStatsExporter(Appendable out) {
+        this.out = out;
+    }
+
+    @Override
+    public void export(String name, DictionaryStats stats) throws IOException {
+        String labels = "name=\"" + escape(name) + "\",type=\"" + stats.getType() + "\"";
+        sample("dictionary_size", labels, stats.getSize());
+        sample("dictionary_capacity", labels, stats.getCapacity());
+        sample("dictionary_memory_bytes", labels, stats.getMemoryBytes());
+        sample("dictionary_lookups_total", labels + ",result=\"hit\"", stats.getHits());
+        sample("dictionary_lookups_total", labels + ",result=\"miss\"", stats.getMisses());
+        sample("dictionary_adds_total", labels + ",result=\"insert\"", stats.getInserts());
+        sample("dictionary_adds_total", labels + ",result=\"update\"", stats.getUpdates());
+        sample("dictionary_removes_total", labels, stats.getRemoves());
+        sample("dictionary_resizes_total", labels, stats.getResizes());
+        sample("dictionary_resize_seconds_total", labels, stats.getResizeNanos() / 1e9);
+        sample("dictionary_resize_seconds_max", labels, stats.getMaxResizeNanos() / 1e9);
+        if (stats.getHeight() > 0) {
+            sample("dictionary_height", labels, stats.getHeight());
+        }
+        if (stats.hasFilter()) {
+            sample("dictionary_filter_memory_bytes", labels, stats.getFilterBytes());
+            sample("dictionary_filter_rejects_total", labels, stats.getFilterRejects());
+            sample("dictionary_filter_false_positives_total", labels, stats.getFilterFalsePositives());
+            sample("dictionary_filter_false_positive_ratio", labels, stats.getFalsePositiveRate());
+            sample("dictionary_filter_expected_false_positive_ratio", labels, stats.getExpectedFalsePositiveRate());
+        }
+        histogram("dictionary_probe_length", labels, stats.getProbeLengths());
+        histogram("dictionary_chain_length", labels, stats.getChainLengths());
+    }
+
+    private void histogram(String metric, String labels, long[] counts) throws IOException {
+        for (int length = 0; length < counts.length; length++) {
+            if (counts[length] > 0) {
+                sample(metric, labels + ",length=\"" + length + "\"", counts[length]);
+            }
+        }
+    }
+
+    private void sample(String metric, String labels, long value) throws IOException {
+        out.append(metric).append('{').append(labels).append("} ").append(Long.toString(value)).append('\n');
+    }
+
+    private void sample(String metric, String labels, double value) throws IOException {
+        out.append(metric).append('{').append(labels).append("} ").append(Double.toString(value)).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}